@@ -0,0 +1,181 @@
+// JMH benchmark suite for the caches in system-design/caching_system.java
+
+// What it measures:
+// Throughput and sampled latency of a read-through access (get, then put on a miss).
+// Allocation rate per operation, from the GC profiler (gc.alloc.rate.norm).
+// Workloads: zipfian (skewed hot set), uniform (no locality) and scan (a hot set interrupted by
+// long runs of never-repeated keys), each at 1, 2, 4, 8, 16 and 32 threads.
+// Caches that are not thread-safe are benchmarked behind a single lock, which is how they would have
+// to be shared in production; this is the baseline ConcurrentLRUCache has to beat.
+
+// How to run (from system-design/benchmarks; the build compiles packaged copies of caching_system.java
+// and cache_trace_replay.java, which generates the zipfian and scan traces, next to this class, see pom.xml):
+// mvn -B package
+// java -cp target/benchmarks.jar cache.CacheBenchmark                  -> full matrix
+// java -cp target/benchmarks.jar cache.CacheBenchmark concurrentLru    -> only the given caches
+// java -jar target/benchmarks.jar CacheBenchmark -t 4 -prof gc         -> one run, JMH command line
+// Hit ratios on recorded traces are measured by CacheTraceReplay, not here.
+
+package cache;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheBenchmark {
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32};
+    private static final int CAPACITY = 1 << 16;
+    private static final int KEY_SPACE = CAPACITY * 4;
+    private static final int TRACE_LENGTH = 1 << 20; // Per thread, power of two so the index can wrap with a mask
+
+    // Serializes every call of a cache that is not thread-safe
+    static final class LockedCache implements IntCache {
+        private final IntCache delegate;
+
+        LockedCache(IntCache delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public synchronized int get(int key) {
+            return delegate.get(key);
+        }
+
+        @Override
+        public synchronized void put(int key, int value) {
+            delegate.put(key, value);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SharedCache {
+        @Param({"lru", "intLru", "wTinyLfu", "concurrentLru"})
+        public String cache;
+
+        IntCache instance;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            switch (cache) {
+                case "lru":
+                    instance = new LockedCache(new LRUCache(CAPACITY));
+                    break;
+                case "intLru":
+                    instance = new LockedCache(new IntLRUCache(CAPACITY));
+                    break;
+                case "wTinyLfu":
+                    instance = new LockedCache(new WTinyLFUCache(CAPACITY));
+                    break;
+                case "concurrentLru":
+                    ConcurrentLRUCache concurrent = new ConcurrentLRUCache(CAPACITY);
+                    instance = new IntCache() {
+                        @Override
+                        public int get(int key) {
+                            return concurrent.get(key);
+                        }
+
+                        @Override
+                        public void put(int key, int value) {
+                            concurrent.put(key, value);
+                        }
+                    };
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown cache: " + cache);
+            }
+            // Start warm so the measurement is not dominated by the initial fill
+            for (int key = 0; key < CAPACITY; key++) {
+                instance.put(key, key);
+            }
+        }
+    }
+
+    // Pre-generated keys per thread, so key generation is not part of the measured operation
+    @State(Scope.Thread)
+    public static class Workload {
+        @Param({"zipfian", "uniform", "scan"})
+        public String distribution;
+
+        int[] keys;
+        int index;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            long seed = Thread.currentThread().getId(); // Threads must not all replay the same keys
+            Random random = new Random(seed);
+            keys = new int[TRACE_LENGTH];
+            switch (distribution) {
+                case "zipfian":
+                    int[] zipf = CacheTraceReplay.syntheticTrace(TRACE_LENGTH, KEY_SPACE, 0, seed);
+                    System.arraycopy(zipf, 0, keys, 0, TRACE_LENGTH);
+                    break;
+                case "uniform":
+                    for (int i = 0; i < TRACE_LENGTH; i++) {
+                        keys[i] = random.nextInt(KEY_SPACE);
+                    }
+                    break;
+                case "scan":
+                    // 2,000 one-off keys out of every 10,000 accesses
+                    int[] scan = CacheTraceReplay.syntheticTrace(TRACE_LENGTH, KEY_SPACE, 2_000, seed);
+                    System.arraycopy(scan, 0, keys, 0, TRACE_LENGTH);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown distribution: " + distribution);
+            }
+        }
+
+        int nextKey() {
+            return keys[index++ & (TRACE_LENGTH - 1)];
+        }
+    }
+
+    @Benchmark
+    public int readThrough(SharedCache cache, Workload workload) {
+        int key = workload.nextKey();
+        int value = cache.instance.get(key);
+        if (value == -1) {
+            cache.instance.put(key, key);
+            return key;
+        }
+        return value;
+    }
+
+    // Runs the whole matrix once per thread count, with the GC profiler for allocation rate
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : THREAD_COUNTS) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .include(CacheBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("cache-benchmark-" + threads + "-threads.json");
+            if (args.length > 0) {
+                options.param("cache", args);
+            }
+            new Runner(options.build()).run();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+// JMH benchmark suite for the rate limiters in system-design/ratelimiter.java
+
+// What it measures:
+// Throughput: allowRequest() calls per second for each strategy (Mode.Throughput).
+// Tail latency: p50/p99/p99.9 of a single decision (Mode.SampleTime reports the percentiles).
+// Allocation rate: bytes allocated per operation, from the GC profiler (gc.alloc.rate.norm).
+// Contention: every benchmark is run at 1, 4, 16 and 64 threads hammering one shared limiter.
+
+// How to run (from system-design/benchmarks; the build compiles a packaged copy of ratelimiter.java
+// next to this class, see pom.xml):
+// mvn -B package
+// java -cp target/benchmarks.jar ratelimiter.RateLimiterBenchmark              -> full matrix
+// java -cp target/benchmarks.jar ratelimiter.RateLimiterBenchmark tokenBucket  -> only the given strategies
+// java -jar target/benchmarks.jar RateLimiterBenchmark -t 4 -prof gc           -> one run, JMH command line
+
+// Limits are set high enough that most calls are allowed, so the benchmark measures the cost of a
+// decision under contention rather than the cost of a denial. The "denying" variants measure the
+// opposite case, where every caller is rejected.
+
+package ratelimiter;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RateLimiterBenchmark {
+    private static final int[] THREAD_COUNTS = {1, 4, 16, 64};
+
+    // One limiter shared by all benchmark threads, like a gateway-wide limit
+    @State(Scope.Benchmark)
+    public static class SharedLimiter {
+        @Param({"slidingLog", "slidingWindowCounter", "tokenBucket", "distributed"})
+        public String strategy;
+
+        RateLimitStrategy allowing; // Limit far above the achievable rate
+        RateLimitStrategy denying; // Limit already exhausted
+        LoopbackQuotaCoordinator coordinator;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            allowing = create(strategy, Integer.MAX_VALUE / 2, 1);
+            denying = create(strategy, 1, TimeUnit.HOURS.toMillis(1));
+            denying.allowRequest();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            for (RateLimitStrategy limiter : new RateLimitStrategy[] {allowing, denying}) {
+                if (limiter instanceof DistributedRateLimiter) {
+                    ((DistributedRateLimiter) limiter).shutdown();
+                }
+            }
+        }
+
+        private RateLimitStrategy create(String name, int maxRequests, long timeWindowMillis) {
+            switch (name) {
+                case "slidingLog":
+                    // The sliding log holds one timestamp per permit, so keep its window realistic
+                    return new RateLimiter(Math.min(maxRequests, 100_000), timeWindowMillis);
+                case "slidingWindowCounter":
+                    return new SlidingWindowCounterRateLimiter(maxRequests, timeWindowMillis, 10);
+                case "tokenBucket":
+                    return new TokenBucketRateLimiter(maxRequests, timeWindowMillis);
+                case "distributed":
+                    if (coordinator == null) {
+                        coordinator = new LoopbackQuotaCoordinator();
+                    }
+                    String quotaId = "bench-" + maxRequests;
+                    coordinator.registerQuota(quotaId, maxRequests, timeWindowMillis);
+                    return new DistributedRateLimiter(coordinator, quotaId, Math.min(maxRequests, 10_000), 1000);
+                default:
+                    throw new IllegalArgumentException("Unknown strategy: " + name);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean allowing(SharedLimiter limiter) {
+        return limiter.allowing.allowRequest();
+    }
+
+    @Benchmark
+    public boolean denying(SharedLimiter limiter) {
+        return limiter.denying.allowRequest();
+    }
+
+    // Runs the whole matrix once per thread count, with the GC profiler for allocation rate
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : THREAD_COUNTS) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .include(RateLimiterBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("ratelimiter-benchmark-" + threads + "-threads.json");
+            if (args.length > 0) {
+                options.param("strategy", args);
+            }
+            new Runner(options.build()).run();
+        }
+    }
+}
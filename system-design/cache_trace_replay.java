@@ -0,0 +1,141 @@
+// Trace replay harness for the caches in caching_system.java
+
+// Replays a sequence of key accesses against every EvictionPolicy at the same capacity and prints the
+// hit ratio of each, so a policy change can be judged against the existing LRU on real traffic.
+// Each access is a get(); on a miss the key is loaded with put(), like a read-through cache would.
+
+// Usage:
+// java CacheTraceReplay <capacities> [<format> <trace file>]
+//   capacities  one or more cache sizes separated by commas, e.g. 1000,10000,100000
+//   format      plain -> one access per line, the first token is the key
+//               lirs  -> LIRS trace: one block number per line ("*" lines are ignored)
+//               arc   -> ARC trace: "<start block> <block count> <ignored> <request id>" per line,
+//                        every block of the range is one access
+// Without a trace file a built-in synthetic trace is used: a Zipfian working set interrupted by
+// periodic one-off scans. "java CacheTraceReplay <capacity> <file>" still reads a plain trace.
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+public class CacheTraceReplay {
+
+    // Hit ratio of a single policy over the whole trace
+    static double replay(IntCache cache, int[] trace) {
+        long hits = 0;
+        for (int key : trace) {
+            if (cache.get(key) != -1) {
+                hits++;
+            } else {
+                cache.put(key, key);
+            }
+        }
+        return trace.length == 0 ? 0 : (double) hits / trace.length;
+    }
+
+    static int[] readTrace(String path) throws IOException {
+        return readTrace("plain", path);
+    }
+
+    // Block numbers may exceed the int range, so keys are folded with Long.hashCode
+    static int[] readTrace(String format, String path) throws IOException {
+        IntArrayBuilder trace = new IntArrayBuilder();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#") || line.startsWith("*")) {
+                    continue;
+                }
+                String[] fields = line.split("[\\s,]+");
+                switch (format) {
+                    case "arc":
+                        long start = Long.parseLong(fields[0]);
+                        long count = Long.parseLong(fields[1]);
+                        for (long block = start; block < start + count; block++) {
+                            trace.add(Long.hashCode(block));
+                        }
+                        break;
+                    case "lirs":
+                    case "plain":
+                        trace.add(Long.hashCode(Long.parseLong(fields[0])));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown trace format: " + format);
+                }
+            }
+        }
+        return trace.toArray();
+    }
+
+    // Growable int array so multi-million access traces are not boxed
+    static final class IntArrayBuilder {
+        private int[] values = new int[1 << 16];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    // Zipfian accesses over a fixed working set, with a burst of never-repeated keys every 10k accesses.
+    // The same seed always yields the same trace.
+    static int[] syntheticTrace(int length, int workingSet, int scanLength, long seed) {
+        Random random = new Random(seed);
+        double[] cumulative = new double[workingSet];
+        double sum = 0;
+        for (int i = 0; i < workingSet; i++) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+        int[] trace = new int[length];
+        int scanKey = workingSet;
+        for (int i = 0; i < length; i++) {
+            if (i % 10_000 < scanLength) {
+                trace[i] = scanKey++; // One-off key from a batch scan
+            } else {
+                int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                trace[i] = rank >= 0 ? rank : -rank - 1;
+            }
+        }
+        return trace;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int[] capacities = Arrays.stream((args.length > 0 ? args[0] : "1000").split(","))
+                .mapToInt(Integer::parseInt)
+                .toArray();
+        int[] trace;
+        if (args.length > 2) {
+            trace = readTrace(args[1], args[2]);
+        } else if (args.length > 1) {
+            trace = readTrace(args[1]);
+        } else {
+            trace = syntheticTrace(1_000_000, 50_000, 2_000, 42);
+        }
+
+        System.out.println(trace.length + " accesses");
+        System.out.printf("%-12s", "capacity");
+        for (EvictionPolicy policy : EvictionPolicy.values()) {
+            System.out.printf("%14s", policy);
+        }
+        System.out.println();
+        for (int capacity : capacities) {
+            System.out.printf("%-12d", capacity);
+            for (EvictionPolicy policy : EvictionPolicy.values()) {
+                System.out.printf("%13.2f%%", replay(policy.newCache(capacity), trace) * 100);
+            }
+            System.out.println();
+        }
+    }
+}
@@ -38,16 +38,67 @@
 
 // ========= CODE =========
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 // Represents a backend server
 class Server {
-    private String id;
-    private boolean healthy;
+    private static final Runnable NO_LISTENER = () -> { };
+    private static final double LATENCY_EWMA_ALPHA = 0.2; // Weight of the newest sample in the latency average
+
+    private final String id;
+    private final String host; // Null for servers that only exist in memory, as in the simple examples
+    private final int port;
+    private volatile int weight; // Relative capacity for weighted round-robin, e.g. proportional to instance size
+    private volatile boolean healthy; // Verdict of the active health checks
+    private final AtomicLong ejectedUntilNanos = new AtomicLong(); // Passive outlier ejection deadline, 0 when not ejected
+    private volatile int ejectionCount; // Consecutive ejections, drives the exponential backoff
+    private volatile long lastEjectionNanos; // Only written by the thread whose CAS ejected the server
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicInteger inFlightRequests = new AtomicInteger(); // Requests sent but not completed yet
+    private final AtomicLong latencyEwmaBits = new AtomicLong(); // Double.doubleToRawLongBits of the EWMA in nanos, 0 = no samples
+    private final ServerMetrics metrics = new ServerMetrics();
+    private volatile Runnable stateListener = NO_LISTENER; // Notified when the server becomes (un)available
 
     public Server(String id) {
+        this(id, null, 0);
+    }
+
+    public Server(String id, String host, int port) {
+        this(id, host, port, 1);
+    }
+
+    public Server(String id, String host, int port, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Weight must be positive");
+        }
         this.id = id;
+        this.host = host;
+        this.port = port;
+        this.weight = weight;
         this.healthy = true; // Assume all servers start as healthy
     }
 
@@ -55,58 +106,980 @@ class Server {
         return id;
     }
 
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public void setWeight(int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Weight must be positive");
+        }
+        this.weight = weight;
+    }
+
     public boolean isHealthy() {
         return healthy;
     }
 
     public void setHealthy(boolean healthy) {
-        this.healthy = healthy;
+        if (this.healthy != healthy) {
+            this.healthy = healthy;
+            stateListener.run();
+        }
+    }
+
+    public boolean isEjected() {
+        return ejectedUntilNanos.get() != 0;
+    }
+
+    // A server receives traffic only if it passes health checks and is not ejected as an outlier
+    public boolean isAvailable() {
+        return healthy && !isEjected();
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public int getInFlightRequests() {
+        return inFlightRequests.get();
+    }
+
+    // Called when a request is routed to this server
+    void onRequestStart() {
+        inFlightRequests.incrementAndGet();
+    }
+
+    // Completion callback: called when a request routed to this server finished, successfully or not
+    void onRequestComplete() {
+        inFlightRequests.decrementAndGet();
+    }
+
+    // Exponentially weighted moving average of the response latency in nanoseconds, 0 before the first response
+    public double getLatencyEwmaNanos() {
+        return Double.longBitsToDouble(latencyEwmaBits.get());
+    }
+
+    void recordLatency(long latencyNanos) {
+        while (true) {
+            long currentBits = latencyEwmaBits.get();
+            double current = Double.longBitsToDouble(currentBits);
+            double updated = current == 0 ? latencyNanos : current + LATENCY_EWMA_ALPHA * (latencyNanos - current);
+            if (latencyEwmaBits.compareAndSet(currentBits, Double.doubleToRawLongBits(Math.max(updated, 1)))) {
+                return;
+            }
+        }
+    }
+
+    void setStateListener(Runnable stateListener) {
+        this.stateListener = stateListener;
+    }
+
+    // Counts a failed request and returns the number of failures in a row
+    int recordFailure() {
+        return consecutiveFailures.incrementAndGet();
+    }
+
+    void recordSuccess() {
+        consecutiveFailures.set(0);
+    }
+
+    // Ejects the server for baseNanos * 2^(previous ejections), capped at maxNanos. The backoff is
+    // forgotten once the server has stayed in the pool for twice the maximum ejection time.
+    // Lock-free: of several threads seeing the failure threshold at once, only the one whose CAS sets
+    // the deadline ejects, and the listener runs without any lock held.
+    boolean eject(long now, long baseNanos, long maxNanos) {
+        if (isEjected()) {
+            return false;
+        }
+        int previousEjections = ejectionCount;
+        if (previousEjections > 0 && now - lastEjectionNanos > 2 * maxNanos) {
+            previousEjections = 0;
+        }
+        long duration = Math.min(maxNanos, baseNanos << Math.min(previousEjections, 30));
+        if (!ejectedUntilNanos.compareAndSet(0, now + duration)) {
+            return false;
+        }
+        ejectionCount = previousEjections + 1;
+        lastEjectionNanos = now;
+        consecutiveFailures.set(0);
+        stateListener.run();
+        return true;
+    }
+
+    long getEjectedUntilNanos() {
+        return ejectedUntilNanos.get();
+    }
+
+    // Brings an ejected server back once its ejection time is over
+    boolean reinstateIfDue(long now) {
+        long until = ejectedUntilNanos.get();
+        return until != 0 && now - until >= 0 && ejectedUntilNanos.compareAndSet(until, 0);
+    }
+}
+
+// Algorithm that picks the server for the next request
+interface BalancingStrategy {
+    // Picks one of the given servers. The array is never empty and holds only available servers,
+    // so a strategy never has to skip or retry. Implementations must not modify it.
+    Server select(Server[] servers);
+}
+
+// Plain round-robin: the original LoadBalancer behaviour, on a shared atomic counter.
+// getAndIncrement is a single atomic add, so selection is wait-free and allocation-free.
+class RoundRobinStrategy implements BalancingStrategy {
+    private final AtomicLong counter = new AtomicLong();
+
+    @Override
+    public Server select(Server[] servers) {
+        return servers[(int) Math.floorMod(counter.getAndIncrement(), (long) servers.length)];
+    }
+}
+
+// Least outstanding requests: send the request to the server with the fewest in-flight requests.
+// Slow servers accumulate in-flight requests and automatically receive less new traffic.
+class LeastOutstandingRequestsStrategy implements BalancingStrategy {
+    @Override
+    public Server select(Server[] servers) {
+        // Start at a random offset so ties do not always go to the first server
+        int offset = ThreadLocalRandom.current().nextInt(servers.length);
+        Server best = servers[offset];
+        for (int i = 1; i < servers.length; i++) {
+            Server server = servers[(offset + i) % servers.length];
+            if (server.getInFlightRequests() < best.getInFlightRequests()) {
+                best = server;
+            }
+        }
+        return best;
+    }
+}
+
+// Power of two random choices: sample two servers at random and take the less loaded one.
+// Nearly as good as scanning all servers for least outstanding requests, but O(1) per request and
+// without the herd effect of every balancer instance picking the same "best" server at once.
+class PowerOfTwoChoicesStrategy implements BalancingStrategy {
+    @Override
+    public Server select(Server[] servers) {
+        int totalServers = servers.length;
+        if (totalServers == 1) {
+            return servers[0];
+        }
+        // Two distinct random servers
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int firstIndex = random.nextInt(totalServers);
+        int secondIndex = (firstIndex + 1 + random.nextInt(totalServers - 1)) % totalServers;
+        Server first = servers[firstIndex];
+        Server second = servers[secondIndex];
+        return first.getInFlightRequests() <= second.getInFlightRequests() ? first : second;
+    }
+}
+
+// Smooth weighted round-robin, as in nginx: on every pick each server's current weight grows by its
+// effective weight, the server with the highest current weight wins and is pushed back by the total.
+// Over one cycle of sum(weights) picks every server is chosen exactly `weight` times, and the picks
+// are interleaved (weights 5,1,1 give a a b a c a a) instead of sent in bursts to the heaviest server.
+//
+// In latency-aware mode the effective weight is the static weight scaled by bestLatency / latency,
+// using each server's EWMA response latency, so a degraded host sheds traffic by itself and wins it
+// back once its latency recovers. The scale never goes below minLatencyFactor, so a slow server
+// still receives enough requests to notice when it gets fast again.
+//
+// select() takes no lock: one cycle of picks is precomputed into an immutable schedule and threads
+// claim positions in it from a shared AtomicLong. The thread that runs past the end of the cycle,
+// or first sees a new server snapshot, builds the next schedule from the current weights and
+// latencies and publishes it with a CAS. Weight and latency changes therefore apply from the next
+// cycle on. Latency factors are rounded to 1/LATENCY_FACTOR_STEPS.
+class WeightedRoundRobinStrategy implements BalancingStrategy {
+    private static final int LATENCY_FACTOR_STEPS = 100;
+    private static final int MAX_CYCLE_LENGTH = 1 << 16;
+
+    private final boolean latencyAware;
+    private final double minLatencyFactor;
+    private final AtomicLong cursor = new AtomicLong();
+    private final AtomicReference<Schedule> schedule = new AtomicReference<>(new Schedule(new Server[0], new Server[0], 0));
+
+    // One precomputed cycle of picks over a server snapshot, starting at cursor position `start`
+    private static final class Schedule {
+        final Server[] servers;
+        final Server[] picks;
+        final long start;
+
+        Schedule(Server[] servers, Server[] picks, long start) {
+            this.servers = servers;
+            this.picks = picks;
+            this.start = start;
+        }
+    }
+
+    // Static weights only
+    public WeightedRoundRobinStrategy() {
+        this(false, 1);
+    }
+
+    public WeightedRoundRobinStrategy(boolean latencyAware, double minLatencyFactor) {
+        if (minLatencyFactor <= 0 || minLatencyFactor > 1) {
+            throw new IllegalArgumentException("minLatencyFactor must be in (0, 1]");
+        }
+        this.latencyAware = latencyAware;
+        this.minLatencyFactor = minLatencyFactor;
+    }
+
+    @Override
+    public Server select(Server[] available) {
+        long position = cursor.getAndIncrement();
+        while (true) {
+            Schedule current = schedule.get();
+            if (current.servers == available) {
+                long offset = position - current.start;
+                if (offset < 0) {
+                    // Claimed before a concurrent rebuild published the next cycle; any pick of it will do
+                    return current.picks[(int) Math.floorMod(offset, (long) current.picks.length)];
+                }
+                if (offset < current.picks.length) {
+                    return current.picks[(int) offset];
+                }
+            }
+            Schedule next = new Schedule(available, buildCycle(available), position);
+            if (schedule.compareAndSet(current, next)) {
+                return next.picks[0];
+            }
+        }
+    }
+
+    // One cycle of smooth weighted round-robin picks, starting from all current weights at zero
+    private Server[] buildCycle(Server[] available) {
+        int[] weights = new int[available.length];
+        double bestLatency = latencyAware ? bestLatency(available) : 0;
+        long total = 0;
+        int divisor = 0;
+        for (int i = 0; i < available.length; i++) {
+            weights[i] = effectiveWeight(available[i], bestLatency);
+            total += weights[i];
+            divisor = gcd(divisor, weights[i]);
+        }
+        if (total / divisor > MAX_CYCLE_LENGTH) {
+            // Keep the ratios approximately; every server still gets at least one pick per cycle
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = (int) Math.max(1, weights[i] * (long) MAX_CYCLE_LENGTH / total);
+            }
+            divisor = 1;
+        }
+        int cycleLength = 0;
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] /= divisor;
+            cycleLength += weights[i];
+        }
+        Server[] picks = new Server[cycleLength];
+        long[] currentWeights = new long[weights.length];
+        for (int pick = 0; pick < cycleLength; pick++) {
+            int best = 0;
+            for (int i = 0; i < weights.length; i++) {
+                currentWeights[i] += weights[i];
+                if (currentWeights[i] > currentWeights[best]) {
+                    best = i;
+                }
+            }
+            currentWeights[best] -= cycleLength;
+            picks[pick] = available[best];
+        }
+        return picks;
+    }
+
+    private int effectiveWeight(Server server, double bestLatency) {
+        int weight = server.getWeight();
+        if (!latencyAware) {
+            return weight;
+        }
+        double latency = server.getLatencyEwmaNanos();
+        if (bestLatency == 0 || latency == 0) {
+            return weight * LATENCY_FACTOR_STEPS; // No measurements yet
+        }
+        double factor = Math.max(minLatencyFactor, bestLatency / latency);
+        return weight * (int) Math.max(1, Math.round(factor * LATENCY_FACTOR_STEPS));
+    }
+
+    private static double bestLatency(Server[] servers) {
+        double best = 0;
+        for (Server server : servers) {
+            double latency = server.getLatencyEwmaNanos();
+            if (latency != 0 && (best == 0 || latency < best)) {
+                best = latency;
+            }
+        }
+        return best;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
     }
 }
 
-// Represents a simple round-robin load balancer
+// Immutable consistent-hash ring over a server snapshot, used for sticky routing by request key.
+// Every server is placed at `virtualNodes` points on a 64-bit ring and a key belongs to the first
+// point clockwise from its hash. Adding or removing a server only moves the keys on the arcs that
+// server gains or loses (about 1/n of them); all other keys stay on their server.
+//
+// Bounded loads (Mirrokni et al., "Consistent Hashing with Bounded Loads"): a server may hold at most
+// ceil(loadFactor * average) in-flight requests. When the key's own server is at that bound the walk
+// continues clockwise to the next server below it, so a hot key spills over to a few neighbours
+// instead of overloading one server, and goes back home as soon as the load drops.
+class ServerHashRing {
+    private final long[] points; // Sorted hashes of the virtual nodes
+    private final Server[] owners; // owners[i] owns the arc ending at points[i]
+    private final Server[] servers;
+
+    ServerHashRing(Server[] servers, int virtualNodes) {
+        this.servers = servers;
+        int size = servers.length * virtualNodes;
+        long[] hashes = new long[size];
+        Integer[] order = new Integer[size];
+        for (int s = 0; s < servers.length; s++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                int i = s * virtualNodes + v;
+                hashes[i] = hash(servers[s].getId() + "#" + v);
+                order[i] = i;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+        this.points = new long[size];
+        this.owners = new Server[size];
+        for (int i = 0; i < size; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = servers[order[i] / virtualNodes];
+        }
+    }
+
+    boolean isEmpty() {
+        return points.length == 0;
+    }
+
+    // The key's server on the plain ring, ignoring load
+    Server owner(String key) {
+        return owners[firstPointAtOrAfter(hash(key))];
+    }
+
+    // The first server clockwise from the key whose in-flight count is below the bounded-load capacity
+    Server select(String key, double loadFactor) {
+        int totalInFlight = 0;
+        for (Server server : servers) {
+            totalInFlight += server.getInFlightRequests();
+        }
+        // Counts the request being routed, so the capacities always add up to more than the total load
+        int capacity = (int) Math.ceil(loadFactor * (totalInFlight + 1) / servers.length);
+        int start = firstPointAtOrAfter(hash(key));
+        for (int i = 0; i < points.length; i++) {
+            Server candidate = owners[(start + i) % points.length];
+            if (candidate.getInFlightRequests() < capacity) {
+                return candidate;
+            }
+        }
+        return owners[start]; // In-flight counts moved under us; fall back to the key's own server
+    }
+
+    private int firstPointAtOrAfter(long hash) {
+        int index = Arrays.binarySearch(points, hash);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return index == points.length ? 0 : index; // Wrap around the ring
+    }
+
+    // FNV-1a over the UTF-8 bytes, finished with a 64-bit mix so nearby ids land far apart.
+    // Same function as ConsistentHashRing.hash in caching_system.java, so both rings place keys alike.
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    // Finalizer of MurmurHash3 (fmix64)
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
+
+// Response-time histogram of one server, recorded lock-free by every thread that completes a request
+// to it. Latencies are kept in microseconds, with 8 linear buckets per power of two (bucket width at
+// most 1/8 of its lower bound) from 1us up to ~71 minutes; anything longer lands in the last bucket,
+// and the exact maximum is tracked on the side to cap the reported percentiles.
+// A LongAdder per bucket would be ~500 objects per server, each inflating its own padded cell array
+// once contended. Instead the counts live in STRIPES stripes of one AtomicLongArray, chosen by thread
+// id: a fixed STRIPES * BUCKET_COUNT longs per server, and concurrent threads mostly increment
+// different stripes.
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 31; // 2^32us, about 71 minutes, is the first untracked value
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    private static final int STRIPES = Math.min(8, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()));
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKET_COUNT);
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public void record(long latencyNanos) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKET_COUNT + bucketIndex(latencyNanos / 1000));
+        maxNanos.accumulate(latencyNanos);
+    }
+
+    // Current bucket counts summed over the stripes; not atomic across buckets, fine for monitoring
+    long[] bucketCounts() {
+        long[] buckets = new long[BUCKET_COUNT];
+        for (int i = 0; i < counts.length(); i++) {
+            buckets[i % BUCKET_COUNT] += counts.get(i);
+        }
+        return buckets;
+    }
+
+    long maxNanos() {
+        return maxNanos.get();
+    }
+
+    // Upper bound in nanoseconds of the bucket holding the given percentile (0-100), 0 if nothing was recorded
+    static long percentile(long[] buckets, double percentile) {
+        long total = 0;
+        for (long count : buckets) {
+            total += count;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && buckets[i] > 0) {
+                // The last bucket also holds everything longer, so it has no upper bound of its own
+                return i == BUCKET_COUNT - 1 ? Long.MAX_VALUE : bucketUpperBoundMicros(i) * 1000 + 999;
+            }
+        }
+        return 0;
+    }
+
+    private static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(0, micros);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int mantissa = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    private static long bucketUpperBoundMicros(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long mantissa = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + mantissa + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
+
+// Request metrics of one server. Every thread completing a request to the server bumps the same
+// three counters, so they are LongAdders; they are only read when a reporter takes a snapshot.
+class ServerMetrics {
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    void recordRequest(boolean success, long latencyNanos) {
+        requests.increment();
+        if (!success) {
+            errors.increment();
+        }
+        totalLatencyNanos.add(latencyNanos);
+        latency.record(latencyNanos);
+    }
+
+    public ServerStats snapshot(Server server) {
+        return new ServerStats(server.getId(), requests.sum(), errors.sum(), server.getInFlightRequests(),
+                totalLatencyNanos.sum(), latency.bucketCounts(), latency.maxNanos());
+    }
+}
+
+// Immutable point-in-time view of one server's metrics
+final class ServerStats {
+    final String serverId;
+    final long requestCount;
+    final long errorCount;
+    final int inFlightRequests; // Current value, not a total
+    final long totalLatencyNanos;
+    final long maxLatencyNanos; // Since start; not available for an interval
+    private final long[] latencyBuckets;
+
+    ServerStats(String serverId, long requestCount, long errorCount, int inFlightRequests,
+                long totalLatencyNanos, long[] latencyBuckets, long maxLatencyNanos) {
+        this.serverId = serverId;
+        this.requestCount = requestCount;
+        this.errorCount = errorCount;
+        this.inFlightRequests = inFlightRequests;
+        this.totalLatencyNanos = totalLatencyNanos;
+        this.latencyBuckets = latencyBuckets;
+        this.maxLatencyNanos = maxLatencyNanos;
+    }
+
+    public double errorRate() {
+        return requestCount == 0 ? 0.0 : (double) errorCount / requestCount;
+    }
+
+    public double averageLatencyNanos() {
+        return requestCount == 0 ? 0.0 : (double) totalLatencyNanos / requestCount;
+    }
+
+    // Never above the largest latency recorded, which the bucket's upper bound could be
+    public long latencyPercentileNanos(double percentile) {
+        return Math.min(LatencyHistogram.percentile(latencyBuckets, percentile), maxLatencyNanos);
+    }
+
+    // Statistics for the interval between an earlier snapshot of the same server and this one
+    public ServerStats minus(ServerStats earlier) {
+        long[] buckets = new long[latencyBuckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = latencyBuckets[i] - earlier.latencyBuckets[i];
+        }
+        return new ServerStats(serverId, requestCount - earlier.requestCount, errorCount - earlier.errorCount,
+                inFlightRequests, totalLatencyNanos - earlier.totalLatencyNanos, buckets, maxLatencyNanos);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s requests=%d errors=%d (%.2f%%) inFlight=%d avg=%.1fus p50=%.1fus p99=%.1fus p99.9=%.1fus",
+                serverId, requestCount, errorCount, errorRate() * 100, inFlightRequests, averageLatencyNanos() / 1000,
+                latencyPercentileNanos(50) / 1000.0, latencyPercentileNanos(99) / 1000.0, latencyPercentileNanos(99.9) / 1000.0);
+    }
+}
+
+// Prints every server's metrics for the last interval at a fixed rate, with each server's share of
+// the requests, so imbalance between backends and their tail latency are visible side by side
+class LoadBalancerMetricsReporter implements AutoCloseable {
+    private final LoadBalancer loadBalancer;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, ServerStats> previous = new HashMap<>(); // Only touched by the scheduler thread
+
+    public LoadBalancerMetricsReporter(LoadBalancer loadBalancer, long period, TimeUnit unit) {
+        this.loadBalancer = loadBalancer;
+        for (ServerStats stats : loadBalancer.metricsSnapshot()) {
+            previous.put(stats.serverId, stats);
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "load-balancer-metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> System.out.print(report()), period, period, unit);
+    }
+
+    // Reports the interval up to now without waiting for the period. The report still runs on the
+    // scheduler thread, since that thread owns the previous snapshot.
+    public String reportNow() throws InterruptedException, ExecutionException {
+        return scheduler.submit(this::report).get();
+    }
+
+    // Interval report against the previous call; servers added since then are reported from zero
+    private String report() {
+        List<ServerStats> current = loadBalancer.metricsSnapshot();
+        List<ServerStats> intervals = new ArrayList<>();
+        long totalRequests = 0;
+        for (ServerStats stats : current) {
+            ServerStats earlier = previous.put(stats.serverId, stats);
+            ServerStats interval = earlier == null ? stats : stats.minus(earlier);
+            intervals.add(interval);
+            totalRequests += interval.requestCount;
+        }
+        StringBuilder report = new StringBuilder("[load balancer] last interval: " + totalRequests + " requests\n");
+        for (ServerStats interval : intervals) {
+            double share = totalRequests == 0 ? 0 : 100.0 * interval.requestCount / totalRequests;
+            report.append(String.format("  %5.1f%% %s%n", share, interval));
+        }
+        return report.toString();
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
+
+// Active health check of a single server
+interface HealthProbe {
+    boolean isHealthy(Server server);
+}
+
+// Probe that considers a server healthy if a TCP connection to it succeeds within the timeout.
+// Servers without a host cannot be probed and are rejected with an IllegalArgumentException.
+class TcpConnectProbe implements HealthProbe {
+    private final int timeoutMillis;
+
+    public TcpConnectProbe(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public boolean isHealthy(Server server) {
+        if (server.getHost() == null) {
+            throw new IllegalArgumentException("Server " + server.getId() + " has no address to probe");
+        }
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(server.getHost(), server.getPort()), timeoutMillis);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
+
+// Local stand-in for a backend, for tests and examples: listens on a loopback port that can be
+// stopped and started again to simulate a server going down and coming back
+class StubBackend implements AutoCloseable {
+    private final int port;
+    private ServerSocket serverSocket;
+
+    public StubBackend() throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.port = serverSocket.getLocalPort();
+    }
+
+    public Server toServer(String id) {
+        return new Server(id, InetAddress.getLoopbackAddress().getHostAddress(), port);
+    }
+
+    public synchronized void stop() throws IOException {
+        if (serverSocket != null) {
+            serverSocket.close();
+            serverSocket = null;
+        }
+    }
+
+    public synchronized void start() throws IOException {
+        if (serverSocket == null) {
+            serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        stop();
+    }
+}
+
+// Passive health checking: watches the outcome of real requests and ejects a server that fails
+// `consecutiveFailures` times in a row. A response slower than `latencySpikeNanos` counts as a failure.
+// Ejected servers come back on their own after an exponentially growing ejection time.
+class OutlierDetector {
+    private final int consecutiveFailures;
+    private final long latencySpikeNanos;
+    private final long baseEjectionNanos;
+    private final long maxEjectionNanos;
+
+    public OutlierDetector(int consecutiveFailures, long latencySpikeMillis, long baseEjectionMillis, long maxEjectionMillis) {
+        if (consecutiveFailures <= 0 || latencySpikeMillis <= 0 || baseEjectionMillis <= 0 || maxEjectionMillis < baseEjectionMillis) {
+            throw new IllegalArgumentException("Invalid outlier detection settings");
+        }
+        this.consecutiveFailures = consecutiveFailures;
+        this.latencySpikeNanos = TimeUnit.MILLISECONDS.toNanos(latencySpikeMillis);
+        this.baseEjectionNanos = TimeUnit.MILLISECONDS.toNanos(baseEjectionMillis);
+        this.maxEjectionNanos = TimeUnit.MILLISECONDS.toNanos(maxEjectionMillis);
+    }
+
+    // Returns true if this outcome got the server ejected
+    boolean recordOutcome(Server server, boolean success, long latencyNanos) {
+        if (success && latencyNanos <= latencySpikeNanos) {
+            server.recordSuccess();
+            return false;
+        }
+        if (server.recordFailure() < consecutiveFailures) {
+            return false;
+        }
+        return server.eject(System.nanoTime(), baseEjectionNanos, maxEjectionNanos);
+    }
+}
+
+// Load balancer that delegates server selection to a pluggable strategy (round-robin by default).
+// The selection path takes no lock: membership is an immutable array replaced copy-on-write by
+// addServer/removeServer, and next to it sits a second snapshot holding only the available servers.
+// That snapshot is rebuilt whenever a server's health or ejection state changes, so selection never
+// has to skip unavailable servers and returns null at once when none is left instead of spinning.
+// Ejected servers are reinstated by a task on the background scheduler, timed for the earliest end of
+// an ejection, so the request path never checks deadlines or rebuilds the snapshot itself.
 class LoadBalancer {
-    private List<Server> servers;
-    private int currentIndex;
+    private static final long NO_REINSTATEMENT = Long.MIN_VALUE;
+    private static final int VIRTUAL_NODES_PER_SERVER = 160;
+
+    private volatile Server[] servers = new Server[0];
+    private volatile Server[] availableServers = new Server[0];
+    private volatile ServerHashRing hashRing = new ServerHashRing(new Server[0], VIRTUAL_NODES_PER_SERVER); // Over availableServers
+    private volatile double stickyLoadFactor = 1.25; // Bounded-load capacity as a multiple of the average load
+    private final BalancingStrategy strategy;
+    private final HealthProbe healthProbe; // Null when active health checks are disabled
+    private final OutlierDetector outlierDetector;
+    private ScheduledExecutorService scheduler; // Health checks and reinstatements, created on first use; guarded by this
+    private ScheduledFuture<?> reinstatementTask; // Guarded by this
+    private long reinstatementNanos = NO_REINSTATEMENT; // When reinstatementTask runs; guarded by this
+    private boolean healthChecksStarted; // Guarded by this
+    private boolean shutdown; // Guarded by this
 
     public LoadBalancer() {
-        this.servers = new ArrayList<>();
-        this.currentIndex = 0;
+        this(new RoundRobinStrategy());
+    }
+
+    public LoadBalancer(BalancingStrategy strategy) {
+        this(strategy, null, new OutlierDetector(5, 1000, 10_000, 300_000));
+    }
+
+    public LoadBalancer(BalancingStrategy strategy, HealthProbe healthProbe, OutlierDetector outlierDetector) {
+        this.strategy = strategy;
+        this.healthProbe = healthProbe;
+        this.outlierDetector = outlierDetector;
     }
 
     // Add a server to the load balancer
-    public void addServer(Server server) {
-        servers.add(server);
+    public synchronized void addServer(Server server) {
+        Server[] updated = Arrays.copyOf(servers, servers.length + 1);
+        updated[servers.length] = server;
+        server.setStateListener(this::refreshAvailableServers);
+        servers = updated;
+        refreshAvailableServers();
+    }
+
+    // Remove a server from the load balancer; requests already routed to it are not affected
+    public synchronized void removeServer(String serverId) {
+        List<Server> remaining = new ArrayList<>();
+        for (Server server : servers) {
+            if (server.getId().equals(serverId)) {
+                server.setStateListener(() -> { });
+            } else {
+                remaining.add(server);
+            }
+        }
+        servers = remaining.toArray(new Server[0]);
+        refreshAvailableServers();
+    }
+
+    public Server[] getServers() {
+        return servers.clone();
     }
 
-    // Balance the load and return the next available server
+    // Current available-server snapshot without copying; replaced, never modified, when it changes
+    Server[] availableServers() {
+        return availableServers;
+    }
+
+    // Balance the load and return the next available server, or null if none is available
     public Server balanceLoad() {
-        int totalServers = servers.size();
-        if (totalServers == 0) {
+        Server[] snapshot = availableServers;
+        if (snapshot.length == 0) {
             return null;
         }
+        return strategy.select(snapshot);
+    }
 
-        while (true) {
-            Server nextServer = servers.get(currentIndex);
-            currentIndex = (currentIndex + 1) % totalServers; // Move to the next server (round-robin)
-            if (nextServer.isHealthy()) {
-                return nextServer;
-            }
+    // Sticky routing: requests with the same key (user ID, client IP, ...) go to the same server as
+    // long as it is available and not over the bounded-load capacity. Returns null if no server is available.
+    public Server balanceLoad(String key) {
+        ServerHashRing ring = hashRing;
+        if (ring.isEmpty()) {
+            return null;
+        }
+        return ring.select(key, stickyLoadFactor);
+    }
+
+    // How far above the average in-flight load a server may go before sticky requests spill over.
+    // Lower values balance better, higher values keep more keys on their own server.
+    public void setStickyLoadFactor(double stickyLoadFactor) {
+        if (stickyLoadFactor < 1) {
+            throw new IllegalArgumentException("Load factor must be at least 1");
+        }
+        this.stickyLoadFactor = stickyLoadFactor;
+    }
+
+    // Routes a request and tracks it as in flight on the chosen server until it returns.
+    // The outcome feeds outlier detection: an exception or a latency spike counts as a failure.
+    public <T> T route(Function<Server, T> request) {
+        return routeTo(balanceLoad(), request);
+    }
+
+    // Sticky variant of route(), see balanceLoad(String)
+    public <T> T route(String key, Function<Server, T> request) {
+        return routeTo(balanceLoad(key), request);
+    }
+
+    private <T> T routeTo(Server server, Function<Server, T> request) {
+        if (server == null) {
+            throw new IllegalStateException("No healthy servers available");
+        }
+        server.onRequestStart();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            T result = request.apply(server);
+            success = true;
+            return result;
+        } finally {
+            onRequestComplete(server, success, System.nanoTime() - start);
+        }
+    }
+
+    // Asynchronous variant: the in-flight count is released by the future's completion callback
+    public <T> CompletableFuture<T> routeAsync(Function<Server, CompletableFuture<T>> request) {
+        Server server = balanceLoad();
+        if (server == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("No healthy servers available"));
+        }
+        server.onRequestStart();
+        long start = System.nanoTime();
+        try {
+            return request.apply(server).whenComplete((result, error) ->
+                    onRequestComplete(server, error == null, System.nanoTime() - start));
+        } catch (RuntimeException e) {
+            onRequestComplete(server, false, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    // Releases the in-flight slot taken for a request and records its outcome; also used by TcpProxy
+    void onRequestComplete(Server server, boolean success, long latencyNanos) {
+        server.onRequestComplete();
+        if (success) {
+            server.recordLatency(latencyNanos); // A fast failure must not make the server look quick
         }
+        server.getMetrics().recordRequest(success, latencyNanos);
+        outlierDetector.recordOutcome(server, success, latencyNanos);
     }
 
-    // Health check all servers and mark unhealthy ones
+    // Health check all servers and mark unhealthy ones. A probe that throws marks only that server
+    // unhealthy; the exception must not escape, or the periodic task would silently stop.
     public void healthCheck() {
+        if (healthProbe == null) {
+            return; // No probe configured: servers stay as they are marked
+        }
+        for (Server server : servers) {
+            boolean healthy;
+            try {
+                healthy = healthProbe.isHealthy(server);
+            } catch (RuntimeException e) {
+                if (server.isHealthy()) {
+                    System.err.println("Health probe failed for " + server.getId() + ", marking it unhealthy: " + e.getMessage());
+                }
+                healthy = false;
+            }
+            server.setHealthy(healthy);
+        }
+    }
+
+    // Runs healthCheck() periodically on a background thread
+    public synchronized void startHealthChecks(long interval, TimeUnit unit) {
+        ScheduledExecutorService scheduler = scheduler();
+        if (scheduler == null || healthChecksStarted) {
+            return;
+        }
+        healthChecksStarted = true;
+        scheduler.scheduleWithFixedDelay(this::healthCheck, 0, interval, unit);
+    }
+
+    // Metrics of every server currently in the pool, available or not
+    public List<ServerStats> metricsSnapshot() {
+        List<ServerStats> snapshot = new ArrayList<>();
+        for (Server server : servers) {
+            snapshot.add(server.getMetrics().snapshot(server));
+        }
+        return snapshot;
+    }
+
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    // The background scheduler, started on first use; null once the load balancer was shut down
+    private ScheduledExecutorService scheduler() {
+        if (scheduler == null && !shutdown) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "load-balancer-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    // Makes sure a reinstatement task runs at the earliest end of an ejection. Runs under the lock
+    // of refreshAvailableServers(), which is also what the task calls.
+    private void scheduleReinstatement(long when, long now) {
+        if (when == reinstatementNanos) {
+            return;
+        }
+        if (reinstatementTask != null) {
+            reinstatementTask.cancel(false);
+            reinstatementTask = null;
+        }
+        reinstatementNanos = when;
+        ScheduledExecutorService scheduler = scheduler();
+        if (when != NO_REINSTATEMENT && scheduler != null) {
+            reinstatementTask = scheduler.schedule(this::reinstate, Math.max(0, when - now), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private synchronized void reinstate() {
+        reinstatementTask = null;
+        reinstatementNanos = NO_REINSTATEMENT; // So the refresh schedules the next one, even for the same time
+        refreshAvailableServers();
+    }
+
+    // Rebuilds the available-server snapshot, reinstating servers whose ejection ran out
+    private synchronized void refreshAvailableServers() {
+        long now = System.nanoTime();
+        long nextReinstatement = NO_REINSTATEMENT;
+        List<Server> available = new ArrayList<>();
         for (Server server : servers) {
-            // Perform a health check (e.g., ping the server)
-            // For simplicity, we assume all servers are healthy in this example
-            // In a real-world scenario, you would perform actual health checks
+            server.reinstateIfDue(now);
+            if (server.isEjected()) {
+                long until = server.getEjectedUntilNanos();
+                if (nextReinstatement == NO_REINSTATEMENT || until - nextReinstatement < 0) {
+                    nextReinstatement = until;
+                }
+            }
+            if (server.isAvailable()) {
+                available.add(server);
+            }
+        }
+        Server[] snapshot = available.toArray(new Server[0]);
+        if (!Arrays.equals(snapshot, availableServers)) {
+            hashRing = new ServerHashRing(snapshot, VIRTUAL_NODES_PER_SERVER);
         }
+        availableServers = snapshot;
+        scheduleReinstatement(nextReinstatement, now);
     }
 }
 
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
         // Create a load balancer
         LoadBalancer loadBalancer = new LoadBalancer();
 
@@ -127,5 +1100,124 @@ public class Main {
                 System.out.println("No healthy servers available.");
             }
         }
+
+        // Power of two choices, the O(1) approximation of least outstanding requests: a slow server
+        // keeps requests in flight and gets fewer new ones
+        LoadBalancer leastLoaded = new LoadBalancer(new PowerOfTwoChoicesStrategy());
+        Server slow = new Server("Slow");
+        Server fast = new Server("Fast");
+        leastLoaded.addServer(slow);
+        leastLoaded.addServer(fast);
+        slow.onRequestStart(); // Pretend two long requests are still running on the slow server
+        slow.onRequestStart();
+        for (int i = 0; i < 5; i++) {
+            String target = leastLoaded.route(Server::getId);
+            System.out.println("Power-of-two request routed to server: " + target);
+        }
+
+        // Smooth weighted round-robin: a large instance with weight 5 next to two small ones
+        LoadBalancer weighted = new LoadBalancer(new WeightedRoundRobinStrategy());
+        weighted.addServer(new Server("Large", null, 0, 5));
+        weighted.addServer(new Server("Small1"));
+        weighted.addServer(new Server("Small2"));
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 7; i++) {
+            order.append(weighted.balanceLoad().getId()).append(' ');
+        }
+        System.out.println("Weighted round-robin order: " + order.toString().trim());
+
+        // Latency-aware weighting: a degraded server (10x slower) gets a fraction of the traffic
+        LoadBalancer latencyAware = new LoadBalancer(new WeightedRoundRobinStrategy(true, 0.05));
+        Server degraded = new Server("Degraded");
+        Server normal = new Server("Normal");
+        latencyAware.addServer(degraded);
+        latencyAware.addServer(normal);
+        degraded.recordLatency(TimeUnit.MILLISECONDS.toNanos(50));
+        normal.recordLatency(TimeUnit.MILLISECONDS.toNanos(5));
+        int toDegraded = 0;
+        for (int i = 0; i < 1100; i++) {
+            if (latencyAware.balanceLoad() == degraded) {
+                toDegraded++;
+            }
+        }
+        System.out.println("Requests to degraded server: " + toDegraded + " of 1100");
+
+        // Sticky routing: the same key keeps going to the same server, and adding a server
+        // only moves the keys that now belong to it
+        LoadBalancer sticky = new LoadBalancer();
+        for (int i = 1; i <= 4; i++) {
+            sticky.addServer(new Server("Cache" + i));
+        }
+        String[] owners = new String[10_000];
+        for (int i = 0; i < owners.length; i++) {
+            owners[i] = sticky.balanceLoad("user-" + i).getId();
+        }
+        sticky.addServer(new Server("Cache5"));
+        int moved = 0;
+        for (int i = 0; i < owners.length; i++) {
+            String owner = sticky.balanceLoad("user-" + i).getId();
+            if (!owner.equals(owners[i]) && !owner.equals("Cache5")) {
+                throw new IllegalStateException("Key moved between existing servers");
+            }
+            if (!owner.equals(owners[i])) {
+                moved++;
+            }
+        }
+        System.out.println("Keys moved after adding a fifth server: " + moved + " of " + owners.length);
+
+        // Bounded loads: a hot key spills over once its server is above the capacity
+        Server home = sticky.balanceLoad("hot-user");
+        for (int i = 0; i < 10; i++) {
+            home.onRequestStart();
+        }
+        System.out.println("Hot key home: " + home.getId() + ", while overloaded routed to: " + sticky.balanceLoad("hot-user").getId());
+
+        // Monitoring: per-server requests, errors, in-flight calls and latency percentiles
+        slow.onRequestComplete(); // The two long requests from above finish
+        slow.onRequestComplete();
+        try (LoadBalancerMetricsReporter reporter = new LoadBalancerMetricsReporter(leastLoaded, 1, TimeUnit.HOURS)) {
+            for (int i = 0; i < 1000; i++) {
+                leastLoaded.route(server -> {
+                    long spin = server.getId().equals("Slow") ? 200_000 : 20_000;
+                    long end = System.nanoTime() + spin;
+                    while (System.nanoTime() < end) {
+                        Thread.onSpinWait();
+                    }
+                    return server.getId();
+                });
+            }
+            System.out.print(reporter.reportNow());
+        }
+
+        // Active health checks against local stub backends
+        try (StubBackend up = new StubBackend(); StubBackend down = new StubBackend()) {
+            LoadBalancer checked = new LoadBalancer(new RoundRobinStrategy(), new TcpConnectProbe(200),
+                    new OutlierDetector(3, 1000, 200, 5_000));
+            checked.addServer(up.toServer("Up"));
+            checked.addServer(down.toServer("Down"));
+            down.stop();
+            checked.healthCheck();
+            System.out.println("After health check, routed to: " + checked.balanceLoad().getId() + ", " + checked.balanceLoad().getId());
+
+            // Passive outlier detection: three failures in a row eject the server for 200ms
+            down.start();
+            checked.healthCheck();
+            for (int i = 0; i < 6; i++) {
+                try {
+                    checked.route(server -> {
+                        if (server.getId().equals("Down")) {
+                            throw new IllegalStateException("connection reset");
+                        }
+                        return server.getId();
+                    });
+                } catch (IllegalStateException e) {
+                    // Failed request, recorded by the outlier detector
+                }
+            }
+            System.out.println("Ejected: " + checked.getServers()[1].isEjected());
+            Thread.sleep(250);
+            System.out.println("Ejected after backoff: " + checked.getServers()[1].isEjected());
+            checked.shutdown();
+        }
     }
 }
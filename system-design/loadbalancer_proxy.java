@@ -0,0 +1,716 @@
+// Layer 4 (TCP) proxy data plane for the LoadBalancer in loadbalancer.java
+
+// The LoadBalancer only decides which Server should take a request; this proxy actually forwards the
+// bytes. Clients connect to the proxy, the configured BalancingStrategy picks an upstream Server and
+// the proxy copies data in both directions until both sides have closed.
+
+// Design:
+// Event loops: one non-blocking Selector thread per core. An acceptor thread hands every accepted client
+//              to the loops in turn, and the connection then stays on that loop for its whole life, so
+//              all per-connection state is thread-confined and needs no locking.
+// Buffers:     each direction of a connection has a direct ByteBuffer taken from a per-loop pool, so the
+//              kernel reads and writes socket data without an extra copy through a heap array, and
+//              no direct memory is allocated per connection.
+// Backpressure: a side is only read while the buffer towards the other side has room; a slow reader
+//              stops its peer instead of making the proxy buffer without limit.
+// Half-close:  end of stream on one side is forwarded with shutdownOutput() once the buffered data is
+//              written, so request/response protocols that signal the end of a request by closing work.
+// Upstreams:   every loop keeps a few warm (already connected) connections per Server, which takes
+//              the TCP handshake off the connection setup path. An idle pooled connection that the
+//              backend closes shows up as readable and is dropped, and one is probed with a
+//              non-blocking read before it is handed out in case that event is still pending. Pools of
+//              servers that left the available set are closed. Connections are not reused after a
+//              session, since an L4 proxy cannot know whether the protocol left them in a clean state.
+// Failures:    a failed upstream connect is reported to the LoadBalancer's outlier detection and the
+//              connection is retried on another server, up to CONNECT_ATTEMPTS times. A reset from the
+//              upstream before it sent anything also counts as a failure. An unexpected exception
+//              while handling one connection closes that connection, never the event loop.
+
+// Usage:
+// java TcpProxy  -> end-to-end self test against local loopback echo servers
+// (compile together with loadbalancer.java)
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TcpProxy implements AutoCloseable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 256; // Per event loop
+    private static final int CONNECT_ATTEMPTS = 3;
+    private static final long POOL_CHECK_INTERVAL_MILLIS = 1000; // Longest a loop waits before pruning pools
+
+    private final LoadBalancer loadBalancer;
+    private final int warmConnectionsPerServer;
+    private final ServerSocketChannel listener;
+    private final EventLoop[] eventLoops;
+    private final Thread acceptor;
+    private volatile boolean running = true;
+
+    // One event loop per core
+    public TcpProxy(LoadBalancer loadBalancer, InetSocketAddress address) throws IOException {
+        this(loadBalancer, address, Runtime.getRuntime().availableProcessors(), 2);
+    }
+
+    public TcpProxy(LoadBalancer loadBalancer, InetSocketAddress address, int eventLoopCount, int warmConnectionsPerServer) throws IOException {
+        if (eventLoopCount <= 0 || warmConnectionsPerServer < 0) {
+            throw new IllegalArgumentException("Invalid proxy settings");
+        }
+        this.loadBalancer = loadBalancer;
+        this.warmConnectionsPerServer = warmConnectionsPerServer;
+        this.listener = ServerSocketChannel.open();
+        listener.bind(address, 1024);
+        this.eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop("tcp-proxy-loop-" + i);
+        }
+        this.acceptor = new Thread(this::acceptLoop, "tcp-proxy-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) listener.getLocalAddress();
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel client = listener.accept();
+                eventLoops[next].submit(client);
+                next = (next + 1) % eventLoops.length;
+            } catch (IOException e) {
+                if (!running) {
+                    return; // The listener was closed by close()
+                }
+                // Accept failures (e.g. out of file descriptors) only affect that client; keep accepting
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        listener.close();
+        for (EventLoop loop : eventLoops) {
+            loop.shutdown();
+        }
+    }
+
+    // Warm connection waiting in the pool of one event loop
+    private static final class PooledConnection {
+        final SocketChannel channel;
+        final UpstreamPool pool;
+        final long connectStartNanos;
+        long connectLatencyNanos;
+
+        PooledConnection(SocketChannel channel, UpstreamPool pool, long connectStartNanos) {
+            this.channel = channel;
+            this.pool = pool;
+            this.connectStartNanos = connectStartNanos;
+        }
+    }
+
+    // Warm connections of one event loop to one Server
+    private static final class UpstreamPool {
+        final InetSocketAddress address;
+        final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+        int connecting; // Warm connections still in the TCP handshake
+        boolean closed; // The server left the available set; connections still connecting are dropped
+
+        UpstreamPool(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    // One direction of a proxied connection: bytes read from source are buffered and written to sink.
+    // The buffer always stays in fill mode between events.
+    private static final class Pipe {
+        final ByteBuffer buffer;
+        SocketChannel source;
+        SocketChannel sink;
+        boolean sourceEnded; // Read returned end of stream
+        boolean sinkShutdown; // End of stream forwarded to the sink
+
+        Pipe(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    // A client connection and the upstream connection it is proxied to
+    private static final class Session {
+        final SocketChannel client;
+        final SelectionKey clientKey;
+        final Pipe toUpstream;
+        final Pipe toClient;
+        Server server;
+        SocketChannel upstream;
+        SelectionKey upstreamKey;
+        boolean connected;
+        long connectStartNanos;
+        long connectLatencyNanos;
+        int attempts;
+        boolean upstreamResponded; // At least one byte was read from the upstream
+        boolean upstreamFailed; // The upstream reset the connection before sending anything
+        boolean closed;
+
+        Session(SocketChannel client, SelectionKey clientKey, ByteBuffer toUpstreamBuffer, ByteBuffer toClientBuffer) {
+            this.client = client;
+            this.clientKey = clientKey;
+            this.toUpstream = new Pipe(toUpstreamBuffer);
+            this.toClient = new Pipe(toClientBuffer);
+            toUpstream.source = client;
+            toClient.sink = client;
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final ConcurrentLinkedQueue<SocketChannel> acceptedClients = new ConcurrentLinkedQueue<>();
+        private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>();
+        private final Map<Server, UpstreamPool> upstreamPools = new HashMap<>(); // Confined to this loop's thread
+        private final ByteBuffer probe = ByteBuffer.allocate(1); // Liveness check of pooled connections
+        private Server[] poolsCheckedAgainst; // Available-server snapshot the pools were last pruned for
+        private volatile boolean stopped;
+
+        EventLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void submit(SocketChannel client) {
+            acceptedClients.add(client);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            stopped = true;
+            selector.wakeup();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    selector.select(POOL_CHECK_INTERVAL_MILLIS);
+                    registerAcceptedClients();
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        Object attachment = key.attachment();
+                        try {
+                            if (attachment instanceof Session) {
+                                handleSession(key, (Session) attachment);
+                            } else {
+                                handlePooledConnection(key, (PooledConnection) attachment);
+                            }
+                        } catch (RuntimeException e) {
+                            // E.g. CancelledKeyException: only this connection is lost
+                            if (attachment instanceof Session) {
+                                closeSession((Session) attachment);
+                            } else {
+                                discard((PooledConnection) attachment);
+                            }
+                        }
+                    }
+                    pruneUpstreamPools();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                // Selector failure: fall through and release everything this loop owns
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly(key.channel());
+                }
+                closeQuietly(selector);
+            }
+        }
+
+        private void registerAcceptedClients() {
+            SocketChannel client;
+            while ((client = acceptedClients.poll()) != null) {
+                try {
+                    client.configureBlocking(false);
+                    client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    // Not read until the upstream is connected
+                    SelectionKey clientKey = client.register(selector, 0);
+                    Session session = new Session(client, clientKey, takeBuffer(), takeBuffer());
+                    clientKey.attach(session);
+                    connectUpstream(session);
+                } catch (IOException | RuntimeException e) {
+                    closeQuietly(client);
+                }
+            }
+        }
+
+        // Picks a server and connects the session to it, preferring a warm pooled connection
+        private void connectUpstream(Session session) {
+            while (session.attempts < CONNECT_ATTEMPTS) {
+                session.attempts++;
+                Server server = loadBalancer.balanceLoad();
+                if (server == null) {
+                    break;
+                }
+                server.onRequestStart();
+                session.server = server;
+                session.connectStartNanos = System.nanoTime();
+                UpstreamPool pool = poolFor(server);
+                if (pool == null) {
+                    reportConnectFailure(session); // No address to connect to
+                    continue;
+                }
+                PooledConnection warm = takeWarmConnection(pool);
+                if (warm != null) {
+                    SelectionKey key = warm.channel.keyFor(selector);
+                    key.attach(session);
+                    session.upstream = warm.channel;
+                    session.upstreamKey = key;
+                    session.connectLatencyNanos = warm.connectLatencyNanos;
+                    onUpstreamConnected(session);
+                    return;
+                }
+                try {
+                    SocketChannel upstream = openUpstream(pool);
+                    session.upstream = upstream;
+                    session.upstreamKey = upstream.register(selector, SelectionKey.OP_CONNECT, session);
+                    if (upstream.isConnected()) {
+                        session.connectLatencyNanos = System.nanoTime() - session.connectStartNanos;
+                        onUpstreamConnected(session);
+                    }
+                    return;
+                } catch (IOException e) {
+                    closeQuietly(session.upstream);
+                    session.upstream = null;
+                    reportConnectFailure(session);
+                }
+            }
+            closeSession(session);
+        }
+
+        private void onUpstreamConnected(Session session) {
+            session.connected = true;
+            session.toUpstream.sink = session.upstream;
+            session.toClient.source = session.upstream;
+            topUpPool(session.server);
+            updateInterest(session);
+        }
+
+        private void reportConnectFailure(Session session) {
+            loadBalancer.onRequestComplete(session.server, false, System.nanoTime() - session.connectStartNanos);
+            session.server = null;
+        }
+
+        private void handleSession(SelectionKey key, Session session) {
+            try {
+                if (key.isConnectable()) {
+                    finishConnect(session);
+                    return;
+                }
+                SocketChannel channel = (SocketChannel) key.channel();
+                if (key.isWritable()) {
+                    flush(channel == session.client ? session.toClient : session.toUpstream);
+                }
+                if (key.isReadable()) {
+                    Pipe pipe = channel == session.client ? session.toUpstream : session.toClient;
+                    int read = pipe.source.read(pipe.buffer);
+                    if (read < 0) {
+                        pipe.sourceEnded = true;
+                    } else if (read > 0 && pipe == session.toClient) {
+                        session.upstreamResponded = true;
+                    }
+                    flush(pipe);
+                }
+                if (session.toUpstream.sinkShutdown && session.toClient.sinkShutdown) {
+                    closeSession(session); // Both directions finished
+                } else {
+                    updateInterest(session);
+                }
+            } catch (IOException e) {
+                // Reset by either side; an upstream that fails before answering counts against the server
+                if (key.channel() == session.upstream && !session.upstreamResponded) {
+                    session.upstreamFailed = true;
+                }
+                closeSession(session);
+            }
+        }
+
+        private void finishConnect(Session session) {
+            try {
+                session.upstream.finishConnect();
+                session.connectLatencyNanos = System.nanoTime() - session.connectStartNanos;
+                onUpstreamConnected(session);
+            } catch (IOException e) {
+                session.upstreamKey.cancel();
+                closeQuietly(session.upstream);
+                session.upstream = null;
+                reportConnectFailure(session);
+                connectUpstream(session); // Retry on another server
+            }
+        }
+
+        // Writes as much buffered data as the sink takes, then forwards end of stream once drained
+        private void flush(Pipe pipe) throws IOException {
+            ByteBuffer buffer = pipe.buffer;
+            buffer.flip();
+            pipe.sink.write(buffer);
+            buffer.compact();
+            if (pipe.sourceEnded && buffer.position() == 0 && !pipe.sinkShutdown) {
+                pipe.sink.shutdownOutput();
+                pipe.sinkShutdown = true;
+            }
+        }
+
+        // Read a side only while the buffer towards its peer has room, write it only while data is waiting
+        private void updateInterest(Session session) {
+            session.clientKey.interestOps(interestOps(session.toUpstream, session.toClient));
+            session.upstreamKey.interestOps(interestOps(session.toClient, session.toUpstream));
+        }
+
+        private int interestOps(Pipe outgoing, Pipe incoming) {
+            int ops = 0;
+            if (!outgoing.sourceEnded && outgoing.buffer.hasRemaining()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (incoming.buffer.position() > 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            return ops;
+        }
+
+        private void closeSession(Session session) {
+            if (session.closed) {
+                return; // Its buffers are already back in the pool
+            }
+            session.closed = true;
+            session.clientKey.cancel();
+            closeQuietly(session.client);
+            if (session.upstream != null) {
+                session.upstreamKey.cancel();
+                closeQuietly(session.upstream);
+            }
+            if (session.server != null) {
+                // Only the connect is judged: a long-lived connection is not a latency spike
+                boolean success = session.connected && !session.upstreamFailed;
+                loadBalancer.onRequestComplete(session.server, success, session.connectLatencyNanos);
+                session.server = null;
+            }
+            returnBuffer(session.toUpstream.buffer);
+            returnBuffer(session.toClient.buffer);
+        }
+
+        // Keeps warmConnectionsPerServer idle or connecting connections to the server
+        private void topUpPool(Server server) {
+            if (!server.isAvailable()) {
+                return; // Would only be pruned again
+            }
+            UpstreamPool pool = poolFor(server);
+            if (pool == null) {
+                return;
+            }
+            while (pool.idle.size() + pool.connecting < warmConnectionsPerServer) {
+                SocketChannel channel = null;
+                try {
+                    channel = openUpstream(pool);
+                    PooledConnection warm = new PooledConnection(channel, pool, System.nanoTime());
+                    if (channel.isConnected()) {
+                        channel.register(selector, SelectionKey.OP_READ, warm);
+                        pool.idle.add(warm);
+                    } else {
+                        channel.register(selector, SelectionKey.OP_CONNECT, warm);
+                        pool.connecting++;
+                    }
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                    return; // Try again when the next session uses this server
+                }
+            }
+        }
+
+        private void handlePooledConnection(SelectionKey key, PooledConnection warm) {
+            if (key.isConnectable()) {
+                warm.pool.connecting--;
+                try {
+                    warm.channel.finishConnect();
+                    warm.connectLatencyNanos = System.nanoTime() - warm.connectStartNanos;
+                    if (!warm.pool.closed) {
+                        key.interestOps(SelectionKey.OP_READ); // Readable while idle means the backend closed it
+                        warm.pool.idle.add(warm);
+                        return;
+                    }
+                } catch (IOException e) {
+                    // Not pooled; the next session connects on its own and reports the failure
+                }
+            } else {
+                warm.pool.idle.remove(warm); // Closed by the backend, or unsolicited data
+            }
+            discard(warm);
+        }
+
+        private void discard(PooledConnection warm) {
+            SelectionKey key = warm.channel.keyFor(selector);
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(warm.channel);
+        }
+
+        // Next idle connection that is still open. The readable event of a connection the backend
+        // closed may not have been processed yet, so each one is probed with a non-blocking read,
+        // which returns 0 on a healthy idle connection.
+        private PooledConnection takeWarmConnection(UpstreamPool pool) {
+            PooledConnection warm;
+            while ((warm = pool.idle.poll()) != null) {
+                try {
+                    probe.clear();
+                    if (warm.channel.read(probe) == 0) {
+                        return warm;
+                    }
+                } catch (IOException e) {
+                    // Reset while idle
+                }
+                discard(warm);
+            }
+            return null;
+        }
+
+        // Closes the pools of servers that are no longer available, once per snapshot change
+        private void pruneUpstreamPools() {
+            Server[] available = loadBalancer.availableServers();
+            if (available == poolsCheckedAgainst || upstreamPools.isEmpty()) {
+                return;
+            }
+            poolsCheckedAgainst = available;
+            List<Server> keep = Arrays.asList(available);
+            Iterator<Map.Entry<Server, UpstreamPool>> pools = upstreamPools.entrySet().iterator();
+            while (pools.hasNext()) {
+                Map.Entry<Server, UpstreamPool> entry = pools.next();
+                if (!keep.contains(entry.getKey())) {
+                    UpstreamPool pool = entry.getValue();
+                    pool.closed = true;
+                    for (PooledConnection warm : pool.idle) {
+                        discard(warm);
+                    }
+                    pool.idle.clear();
+                    pools.remove();
+                }
+            }
+        }
+
+        private UpstreamPool poolFor(Server server) {
+            UpstreamPool pool = upstreamPools.get(server);
+            if (pool == null) {
+                if (server.getHost() == null) {
+                    return null;
+                }
+                pool = new UpstreamPool(new InetSocketAddress(server.getHost(), server.getPort()));
+                upstreamPools.put(server, pool);
+            }
+            return pool;
+        }
+
+        private SocketChannel openUpstream(UpstreamPool pool) throws IOException {
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.connect(pool.address);
+                return channel;
+            } catch (IOException e) {
+                closeQuietly(channel);
+                throw e;
+            }
+        }
+
+        private ByteBuffer takeBuffer() {
+            ByteBuffer buffer = bufferPool.poll();
+            return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        private void returnBuffer(ByteBuffer buffer) {
+            if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+                buffer.clear();
+                bufferPool.push(buffer);
+            }
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // Nothing left to do with a connection that failed to close
+        }
+    }
+
+    // End-to-end self test: concurrent clients send random data through the proxy to loopback echo
+    // servers and check that every byte comes back, then one backend is stopped and traffic fails over
+    public static void main(String[] args) throws Exception {
+        try (EchoServer first = new EchoServer(); EchoServer second = new EchoServer()) {
+            LoadBalancer loadBalancer = new LoadBalancer(new LeastOutstandingRequestsStrategy());
+            loadBalancer.addServer(first.toServer("Echo1"));
+            loadBalancer.addServer(second.toServer("Echo2"));
+            try (TcpProxy proxy = new TcpProxy(loadBalancer, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+                InetSocketAddress address = proxy.getLocalAddress();
+                ExecutorService clients = Executors.newFixedThreadPool(16);
+                try {
+                    long start = System.nanoTime();
+                    int verified = runClients(clients, address, 64, 1 << 20);
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    System.out.printf("%d/64 echo sessions verified, %.1f MB/s each way%n", verified, 64 / seconds);
+                    System.out.println("Connections per backend: Echo1=" + first.getConnections() + ", Echo2=" + second.getConnections());
+
+                    first.stop();
+                    Thread.sleep(200); // Let the loops drop their warm connections to the stopped backend
+                    verified = runClients(clients, address, 16, 64 * 1024);
+                    System.out.println("After stopping Echo1: " + verified + "/16 echo sessions verified");
+                } finally {
+                    clients.shutdownNow();
+                }
+            }
+        }
+    }
+
+    private static int runClients(ExecutorService clients, InetSocketAddress address, int count, int bytes) throws Exception {
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long seed = i;
+            results.add(clients.submit(() -> echoThroughProxy(address, bytes, seed)));
+        }
+        int verified = 0;
+        for (Future<Boolean> result : results) {
+            if (result.get()) {
+                verified++;
+            }
+        }
+        return verified;
+    }
+
+    // Sends random bytes from a separate thread while reading the echo, then compares
+    private static boolean echoThroughProxy(InetSocketAddress address, int bytes, long seed) throws Exception {
+        byte[] sent = new byte[bytes];
+        new Random(seed).nextBytes(sent);
+        try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+            Thread writer = new Thread(() -> {
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    out.write(sent);
+                    out.flush();
+                    socket.shutdownOutput();
+                } catch (IOException e) {
+                    // The reader sees the short echo and fails the check
+                }
+            });
+            writer.start();
+            byte[] received = socket.getInputStream().readAllBytes();
+            writer.join();
+            return Arrays.equals(sent, received);
+        }
+    }
+}
+
+// Blocking loopback echo server used as a backend in the self test: every connection gets its own
+// thread that writes back whatever it reads and closes after end of stream
+class EchoServer implements AutoCloseable {
+    private final ServerSocket serverSocket;
+    private final List<Socket> connections = new ArrayList<>(); // Guarded by itself
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    public EchoServer() throws IOException {
+        this.serverSocket = new ServerSocket(0, 200, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptLoop, "echo-server-" + serverSocket.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public Server toServer(String id) {
+        return new Server(id, InetAddress.getLoopbackAddress().getHostAddress(), serverSocket.getLocalPort());
+    }
+
+    public int getConnections() {
+        return connectionCount.get();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connectionCount.incrementAndGet();
+                synchronized (connections) {
+                    connections.add(socket);
+                }
+                Thread handler = new Thread(() -> echo(socket));
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                return; // Closed
+            }
+        }
+    }
+
+    private void echo(Socket socket) {
+        try (Socket s = socket; InputStream in = s.getInputStream(); OutputStream out = s.getOutputStream()) {
+            in.transferTo(out);
+        } catch (IOException e) {
+            // Connection reset or server stopped
+        } finally {
+            synchronized (connections) {
+                connections.remove(socket);
+            }
+        }
+    }
+
+    // Stops accepting and closes all open connections, like a crashed backend
+    public void stop() throws IOException {
+        serverSocket.close();
+        synchronized (connections) {
+            for (Socket socket : connections) {
+                socket.close();
+            }
+            connections.clear();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        stop();
+    }
+}
@@ -6,6 +6,7 @@
 // Consumer Group: Group of consumers that share the message processing load.
 // Partition Manager: Manages partitions for each topic and assigns partitions to consumers of a consumer group.
 // Signal Handler: Listens for SIGINT and SIGTERM signals to gracefully close subscribers.
+// Partition Log: Append-only, segmented log on disk that stores the messages of one partition.
 
 // Algorithm:
 // Publishers publish messages to topics.
@@ -14,9 +15,34 @@
 // Subscribers run in parallel to process messages.
 // Signal handlers are installed to gracefully close subscribers upon receiving SIGINT or SIGTERM signals.
 
+// Storage:
+// Every partition is an append-only log of records, each identified by a sequential offset. The log is
+// split into segment files named after their first offset; only the newest (active) segment is written.
+// Segments are memory-mapped and preallocated, so an append is a copy into the page cache with no
+// system call; the OS writes the pages back in the background and flush() forces them to disk.
+// Record layout: int payload length | long offset | long timestamp | int CRC32C of the payload | payload.
+// Next to every segment a sparse index maps every ~indexIntervalBytes to (relative offset, file position),
+// so a read by offset is a binary search in the index followed by a short forward scan.
+// After a restart the active segment is scanned and cut at the first torn or corrupt record, which
+// makes the log durable up to the last flush() and consistent even after a crash.
+// Retention deletes whole segments, oldest first, once they are older than retentionMillis or the log
+// is larger than retentionBytes. It runs periodically and after every roll on a shared background
+// thread, which also seals rolled segments, so an append never waits for a segment to be forced to
+// disk or for old files to be deleted. Consumers track their own position and can replay from any
+// offset still retained, including after a restart.
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
 
 // Message class representing a message
 class Message {
@@ -31,17 +57,462 @@ class Message {
     }
 }
 
+// A message as stored in a partition log, with the offset it was assigned
+class StoredMessage {
+    private final long offset;
+    private final long timestamp;
+    private final Message message;
+
+    public StoredMessage(long offset, long timestamp, Message message) {
+        this.offset = offset;
+        this.timestamp = timestamp;
+        this.message = message;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+}
+
+// Storage settings of a partition log
+class LogConfig {
+    private final int segmentBytes;
+    private final int indexIntervalBytes;
+    private final long retentionMillis;
+    private final long retentionBytes;
+
+    public LogConfig(int segmentBytes, int indexIntervalBytes, long retentionMillis, long retentionBytes) {
+        if (segmentBytes < 1024 || indexIntervalBytes <= 0 || retentionMillis <= 0 || retentionBytes <= 0) {
+            throw new IllegalArgumentException("Invalid log settings");
+        }
+        this.segmentBytes = segmentBytes;
+        this.indexIntervalBytes = indexIntervalBytes;
+        this.retentionMillis = retentionMillis;
+        this.retentionBytes = retentionBytes;
+    }
+
+    // 64 MB segments, an index entry every 4 KB, keep 7 days or 1 GB per partition
+    public static LogConfig defaults() {
+        return new LogConfig(64 << 20, 4096, TimeUnit.DAYS.toMillis(7), 1L << 30);
+    }
+
+    public int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    public int getIndexIntervalBytes() {
+        return indexIntervalBytes;
+    }
+
+    public long getRetentionMillis() {
+        return retentionMillis;
+    }
+
+    public long getRetentionBytes() {
+        return retentionBytes;
+    }
+}
+
+// One segment of a partition log: a memory-mapped data file and its sparse offset index.
+// Written by a single appender (PartitionLog holds the lock); readers only look below the volatile
+// size and indexEntries, which the appender publishes after the bytes are in place.
+class LogSegment {
+    static final int HEADER_BYTES = 24; // length, offset, timestamp, crc
+    private static final int INDEX_ENTRY_BYTES = 8; // relative offset, position
+
+    private final long baseOffset;
+    private final Path logFile;
+    private final Path indexFile;
+    private final FileChannel logChannel;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer log;
+    private final MappedByteBuffer index;
+    private final int indexIntervalBytes;
+    private final CRC32C crc = new CRC32C(); // Appender only
+    private volatile int size; // Bytes of complete records
+    private volatile int indexEntries;
+    private volatile long nextOffset;
+    private int lastIndexedPosition = -1; // Appender only
+    private volatile long lastModifiedMillis;
+
+    // Opens (or creates) the segment. An active segment is mapped at its full capacity and recovered by a
+    // full scan; a sealed one is mapped at its file size and trusted up to its last index entry.
+    LogSegment(Path directory, long baseOffset, LogConfig config, boolean active) throws IOException {
+        this.baseOffset = baseOffset;
+        this.logFile = directory.resolve(String.format("%020d.log", baseOffset));
+        this.indexFile = directory.resolve(String.format("%020d.index", baseOffset));
+        this.indexIntervalBytes = config.getIndexIntervalBytes();
+        this.logChannel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long logCapacity = active ? config.getSegmentBytes() : logChannel.size();
+        long indexCapacity = active ? (config.getSegmentBytes() / indexIntervalBytes + 2L) * INDEX_ENTRY_BYTES : indexChannel.size();
+        this.log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, logCapacity);
+        this.index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexCapacity);
+        this.lastModifiedMillis = Files.getLastModifiedTime(logFile).toMillis();
+        if (active) {
+            recover(0, 0);
+        } else {
+            int entries = (int) (indexCapacity / INDEX_ENTRY_BYTES);
+            // A crash before the segment was sealed leaves the preallocated, zero-filled tail of the
+            // index in place; only the first entry may legitimately be (0, 0)
+            while (entries > 1 && index.getLong((entries - 1) * INDEX_ENTRY_BYTES) == 0) {
+                entries--;
+            }
+            recover(entries == 0 ? 0 : index.getInt((entries - 1) * INDEX_ENTRY_BYTES + 4), entries);
+        }
+    }
+
+    // Scans the records from the given position, rebuilding the index from `entries` on, and stops at
+    // the first record that is incomplete, out of sequence or fails its checksum
+    private void recover(int position, int entries) {
+        indexEntries = entries;
+        long expectedOffset = entries == 0 ? baseOffset : baseOffset + index.getInt((entries - 1) * INDEX_ENTRY_BYTES);
+        lastIndexedPosition = entries == 0 ? -1 : position;
+        while (position + HEADER_BYTES <= log.capacity()) {
+            int length = log.getInt(position);
+            if (length <= 0 || position + HEADER_BYTES + length > log.capacity()
+                    || log.getLong(position + 4) != expectedOffset
+                    || log.getInt(position + 20) != checksum(position + HEADER_BYTES, length)) {
+                break;
+            }
+            maybeIndex(expectedOffset, position);
+            expectedOffset++;
+            position += HEADER_BYTES + length;
+        }
+        size = position;
+        nextOffset = expectedOffset;
+    }
+
+    long getBaseOffset() {
+        return baseOffset;
+    }
+
+    long getNextOffset() {
+        return nextOffset;
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    long getLastModifiedMillis() {
+        return lastModifiedMillis;
+    }
+
+    boolean hasRoomFor(int payloadLength) {
+        return size + HEADER_BYTES + payloadLength <= log.capacity();
+    }
+
+    // Appends one record and returns its offset; the caller checked hasRoomFor
+    long append(byte[] payload, long timestamp) {
+        int position = size;
+        long offset = nextOffset;
+        log.putLong(position + 4, offset);
+        log.putLong(position + 12, timestamp);
+        log.put(position + HEADER_BYTES, payload);
+        crc.reset();
+        crc.update(payload);
+        log.putInt(position + 20, (int) crc.getValue());
+        int end = position + HEADER_BYTES + payload.length;
+        if (end + 4 <= log.capacity()) {
+            log.putInt(end, 0); // End marker, so recovery never mistakes stale bytes for a record
+        }
+        log.putInt(position, payload.length); // Written last: a torn header fails recovery's checks
+        maybeIndex(offset, position);
+        nextOffset = offset + 1;
+        size = end; // Publishes the record to readers
+        return offset;
+    }
+
+    private void maybeIndex(long offset, int position) {
+        if (lastIndexedPosition < 0 || position - lastIndexedPosition >= indexIntervalBytes) {
+            int entry = indexEntries * INDEX_ENTRY_BYTES;
+            if (entry + INDEX_ENTRY_BYTES <= index.capacity()) {
+                index.putInt(entry, (int) (offset - baseOffset));
+                index.putInt(entry + 4, position);
+                indexEntries++;
+                lastIndexedPosition = position;
+            }
+        }
+    }
+
+    // Reads up to maxMessages records starting at the given offset (which must be in this segment)
+    void read(long offset, int maxMessages, List<StoredMessage> into) {
+        int limit = size;
+        int position = indexedPositionFor(offset);
+        while (position < limit && maxMessages > 0) {
+            int length = log.getInt(position);
+            long recordOffset = log.getLong(position + 4);
+            if (recordOffset >= offset) {
+                byte[] payload = new byte[length];
+                log.get(position + HEADER_BYTES, payload);
+                into.add(new StoredMessage(recordOffset, log.getLong(position + 12),
+                        new Message(new String(payload, StandardCharsets.UTF_8))));
+                maxMessages--;
+            }
+            position += HEADER_BYTES + length;
+        }
+    }
+
+    // Position of the last index entry at or before the offset, found by binary search
+    private int indexedPositionFor(long offset) {
+        int relative = (int) (offset - baseOffset);
+        int low = 0;
+        int high = indexEntries - 1;
+        int position = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (index.getInt(mid * INDEX_ENTRY_BYTES) <= relative) {
+                position = index.getInt(mid * INDEX_ENTRY_BYTES + 4);
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return position;
+    }
+
+    void flush() {
+        log.force();
+        index.force();
+    }
+
+    // Makes the segment read-only: flushes it and trims both files to their content
+    void seal() throws IOException {
+        flush();
+        logChannel.truncate(size);
+        indexChannel.truncate((long) indexEntries * INDEX_ENTRY_BYTES);
+        lastModifiedMillis = System.currentTimeMillis();
+    }
+
+    void close() throws IOException {
+        logChannel.close();
+        indexChannel.close();
+    }
+
+    // Readers still holding this segment keep a valid mapping until it is garbage collected
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(logFile);
+        Files.deleteIfExists(indexFile);
+    }
+
+    private int checksum(int position, int length) {
+        crc.reset();
+        crc.update(log.slice(position, length));
+        return (int) crc.getValue();
+    }
+}
+
+// Append-only, segmented log of one partition. Appends are serialized by the log's lock and never
+// block readers: readers find the segment in a concurrent map and read below its published size.
+// Sealing rolled segments and retention run on one maintenance thread shared by all logs.
+class PartitionLog implements AutoCloseable {
+    private static final long MAX_RETENTION_CHECK_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final ScheduledExecutorService MAINTENANCE = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "partition-log-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path directory;
+    private final LogConfig config;
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+    private volatile LogSegment activeSegment;
+    private final Object retentionLock = new Object(); // Serializes segment deletion, not appends
+    private final ScheduledFuture<?> retentionTask;
+    private Future<?> pendingMaintenance = CompletableFuture.completedFuture(null); // Last seal task; guarded by this
+
+    public PartitionLog(Path directory, LogConfig config) throws IOException {
+        this.directory = directory;
+        this.config = config;
+        Files.createDirectories(directory);
+        List<Long> baseOffsets = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                baseOffsets.add(Long.parseLong(name.substring(0, name.length() - ".log".length())));
+            }
+        }
+        Collections.sort(baseOffsets);
+        for (int i = 0; i < baseOffsets.size(); i++) {
+            long baseOffset = baseOffsets.get(i);
+            segments.put(baseOffset, new LogSegment(directory, baseOffset, config, i == baseOffsets.size() - 1));
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, new LogSegment(directory, 0, config, true));
+        }
+        this.activeSegment = segments.lastEntry().getValue();
+        long checkInterval = Math.min(config.getRetentionMillis(), MAX_RETENTION_CHECK_INTERVAL_MILLIS);
+        this.retentionTask = MAINTENANCE.scheduleWithFixedDelay(this::enforceRetentionQuietly,
+                checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public long append(Message message) throws IOException {
+        return append(message.getContent().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Appends a record and returns its offset. Durable once flush() returns or the OS writes the pages back.
+    public synchronized long append(byte[] payload) throws IOException {
+        if (LogSegment.HEADER_BYTES + payload.length > config.getSegmentBytes()) {
+            throw new IllegalArgumentException("Message of " + payload.length + " bytes does not fit in a segment");
+        }
+        if (!activeSegment.hasRoomFor(payload.length)) {
+            roll();
+        }
+        return activeSegment.append(payload, System.currentTimeMillis());
+    }
+
+    // Reads up to maxMessages messages starting at the given offset; empty at the end of the log
+    public List<StoredMessage> read(long offset, int maxMessages) {
+        long startOffset = getStartOffset();
+        if (offset < startOffset) {
+            throw new IllegalArgumentException("Offset " + offset + " was deleted by retention, log starts at " + startOffset);
+        }
+        List<StoredMessage> messages = new ArrayList<>();
+        Map.Entry<Long, LogSegment> entry = segments.floorEntry(offset);
+        while (entry != null && messages.size() < maxMessages) {
+            LogSegment segment = entry.getValue();
+            if (offset < segment.getNextOffset()) {
+                segment.read(offset, maxMessages - messages.size(), messages);
+                if (!messages.isEmpty()) {
+                    offset = messages.get(messages.size() - 1).getOffset() + 1;
+                }
+            }
+            entry = segments.higherEntry(entry.getKey());
+        }
+        return messages;
+    }
+
+    // Oldest offset still retained
+    public long getStartOffset() {
+        return segments.firstKey();
+    }
+
+    // Offset the next appended message will get
+    public long getEndOffset() {
+        return activeSegment.getNextOffset();
+    }
+
+    public long getSizeBytes() {
+        long total = 0;
+        for (LogSegment segment : segments.values()) {
+            total += segment.getSize();
+        }
+        return total;
+    }
+
+    // Forces the active segment to disk and waits until rolled segments are sealed
+    public synchronized void flush() throws IOException {
+        activeSegment.flush();
+        awaitMaintenance();
+    }
+
+    // Deletes the oldest sealed segments that are past the retention time or over the size limit.
+    // The active segment is never deleted.
+    public void enforceRetention() throws IOException {
+        synchronized (retentionLock) {
+            deleteExpiredSegments();
+        }
+    }
+
+    private void deleteExpiredSegments() throws IOException {
+        long now = System.currentTimeMillis();
+        long totalBytes = getSizeBytes();
+        for (LogSegment segment : segments.values()) {
+            if (segment == activeSegment) {
+                break;
+            }
+            boolean expired = now - segment.getLastModifiedMillis() > config.getRetentionMillis();
+            if (!expired && totalBytes <= config.getRetentionBytes()) {
+                break;
+            }
+            segments.remove(segment.getBaseOffset());
+            totalBytes -= segment.getSize();
+            segment.delete();
+        }
+    }
+
+    // Forcing a full segment to disk and deleting old ones would stall this append, so the previous
+    // segment is sealed and retention enforced on the maintenance thread
+    private void roll() throws IOException {
+        LogSegment previous = activeSegment;
+        long baseOffset = previous.getNextOffset();
+        LogSegment segment = new LogSegment(directory, baseOffset, config, true);
+        segments.put(baseOffset, segment);
+        activeSegment = segment;
+        pendingMaintenance = MAINTENANCE.submit(() -> {
+            synchronized (retentionLock) {
+                if (segments.get(previous.getBaseOffset()) == previous) { // Not already deleted by retention
+                    previous.seal();
+                }
+                deleteExpiredSegments();
+            }
+            return null;
+        });
+    }
+
+    private void enforceRetentionQuietly() {
+        try {
+            enforceRetention();
+        } catch (IOException e) {
+            System.err.println("Retention of " + directory + " failed: " + e.getMessage());
+        }
+    }
+
+    // Tasks run in submission order, so the last one finishing means all of them have
+    private void awaitMaintenance() throws IOException {
+        try {
+            pendingMaintenance.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a segment to be sealed");
+        } catch (ExecutionException e) {
+            throw new IOException("Sealing a rolled segment of " + directory + " failed", e.getCause());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        retentionTask.cancel(false);
+        try {
+            activeSegment.flush();
+            awaitMaintenance();
+        } finally {
+            synchronized (retentionLock) {
+                for (LogSegment segment : segments.values()) {
+                    segment.close();
+                }
+            }
+        }
+    }
+}
+
 // Partition class representing a partition of a topic
 class Partition {
     private final int id;
+    private final PartitionLog log;
 
-    public Partition(int id) {
+    public Partition(int id, PartitionLog log) {
         this.id = id;
+        this.log = log;
     }
 
     public int getId() {
         return id;
     }
+
+    public PartitionLog getLog() {
+        return log;
+    }
 }
 
 // Topic class representing a messaging topic with partitions
@@ -50,12 +521,17 @@ class Topic {
     private final int numPartitions;
     private final List<Partition> partitions;
 
-    public Topic(String name, int numPartitions) {
+    // Each partition is stored in <dataDirectory>/<name>-<partition id>; existing logs are reopened
+    public Topic(String name, int numPartitions, Path dataDirectory, LogConfig config) {
         this.name = name;
         this.numPartitions = numPartitions;
         this.partitions = new ArrayList<>();
-        for (int i = 0; i < numPartitions; i++) {
-            partitions.add(new Partition(i));
+        try {
+            for (int i = 0; i < numPartitions; i++) {
+                partitions.add(new Partition(i, new PartitionLog(dataDirectory.resolve(name + "-" + i), config)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the logs of topic " + name, e);
         }
     }
 
@@ -70,19 +546,35 @@ class Topic {
     public int getNumPartitions() {
         return numPartitions;
     }
+
+    public void close() throws IOException {
+        for (Partition partition : partitions) {
+            partition.getLog().close();
+        }
+    }
 }
 
-// Consumer class representing a subscriber/consumer
+// Consumer class representing a subscriber/consumer.
+// Reads its assigned partition's log from its own position, so it can start at any retained offset,
+// e.g. the position it had reached before a restart, and replay from there.
 class Consumer implements Runnable {
+    private static final int MAX_POLL_MESSAGES = 100;
+
     private final String groupId;
-    private final Topic topic;
-    private final BlockingQueue<Message> messageQueue;
+    private final Partition partition;
+    private volatile long position; // Offset of the next message to consume
     private final AtomicBoolean running;
 
+    // Starts at the oldest retained message of the partition assigned to the group
     public Consumer(String groupId, Topic topic) {
+        this(groupId, topic, Math.abs(groupId.hashCode()) % topic.getNumPartitions(), -1);
+    }
+
+    // startOffset -1 means the oldest retained message
+    public Consumer(String groupId, Topic topic, int partitionId, long startOffset) {
         this.groupId = groupId;
-        this.topic = topic;
-        this.messageQueue = new LinkedBlockingQueue<>();
+        this.partition = topic.getPartitions().get(partitionId);
+        this.position = startOffset < 0 ? partition.getLog().getStartOffset() : startOffset;
         this.running = new AtomicBoolean(true);
     }
 
@@ -90,13 +582,20 @@ class Consumer implements Runnable {
         try {
             while (running.get()) {
                 // Consume messages from assigned partition
-                for (Partition partition : topic.getPartitions()) {
-                    if (partition.getId() % topic.getNumPartitions() == Math.abs(groupId.hashCode()) % topic.getNumPartitions()) {
-                        Message message = messageQueue.poll(100, TimeUnit.MILLISECONDS);
-                        if (message != null) {
-                            System.out.println("Consumer " + groupId + " received message: " + message.getContent() + " from partition " + partition.getId());
-                        }
-                    }
+                List<StoredMessage> messages;
+                try {
+                    messages = partition.getLog().read(position, MAX_POLL_MESSAGES);
+                } catch (IllegalArgumentException e) {
+                    position = partition.getLog().getStartOffset(); // Fell behind retention: skip to the oldest message
+                    continue;
+                }
+                for (StoredMessage stored : messages) {
+                    System.out.println("Consumer " + groupId + " received message: " + stored.getMessage().getContent()
+                            + " from partition " + partition.getId() + " at offset " + stored.getOffset());
+                    position = stored.getOffset() + 1;
+                }
+                if (messages.isEmpty()) {
+                    Thread.sleep(100); // Caught up with the end of the log
                 }
             }
         } catch (InterruptedException e) {
@@ -108,43 +607,46 @@ class Consumer implements Runnable {
         running.set(false);
     }
 
-    public void handleMessage(Message message) {
-        messageQueue.offer(message);
+    // Offset of the next message this consumer will read; store it to resume after a restart
+    public long getPosition() {
+        return position;
     }
 }
 
-// Publisher class representing a publisher
+// Publisher class representing a publisher.
+// Messages are spread over the partitions round-robin and appended to the partition's log on the
+// calling thread. Each log has its own lock, so concurrent publishers only wait for each other when
+// they hit the same partition.
 class Publisher {
     private final Topic topic;
-    private final ExecutorService executor;
+    private final AtomicInteger nextPartition = new AtomicInteger();
 
     public Publisher(Topic topic) {
         this.topic = topic;
-        this.executor = Executors.newSingleThreadExecutor();
-    }
-
-    public void publish(Message message) {
-        executor.submit(() -> {
-            // Publish message to topic
-            System.out.println("Published message: " + message.getContent() + " to topic: " + topic.getName());
-        });
     }
 
-    public void shutdown() {
-        executor.shutdown();
+    // Returns the offset the message was stored at
+    public long publish(Message message) throws IOException {
+        Partition partition = topic.getPartitions().get(Math.floorMod(nextPartition.getAndIncrement(), topic.getNumPartitions()));
+        return partition.getLog().append(message);
     }
 }
 
 // Topic Manager class representing a manager for topics and partitions
 class TopicManager {
     private final Map<String, Topic> topics;
+    private final Path dataDirectory;
+    private final LogConfig logConfig;
 
-    public TopicManager() {
+    public TopicManager(Path dataDirectory, LogConfig logConfig) {
         this.topics = new HashMap<>();
+        this.dataDirectory = dataDirectory;
+        this.logConfig = logConfig;
     }
 
+    // Creates the topic, or reopens its stored partitions if it existed before a restart
     public void createTopic(String name, int numPartitions) {
-        topics.put(name, new Topic(name, numPartitions));
+        topics.put(name, new Topic(name, numPartitions, dataDirectory, logConfig));
     }
 
     public Topic getTopic(String name) {
@@ -172,8 +674,9 @@ class SignalHandler implements Runnable {
 
 // Main class to test the messaging service
 public class Main {
-    public static void main(String[] args) {
-        TopicManager topicManager = new TopicManager();
+    public static void main(String[] args) throws Exception {
+        Path dataDirectory = Files.createTempDirectory("pubsub-data");
+        TopicManager topicManager = new TopicManager(dataDirectory, LogConfig.defaults());
         topicManager.createTopic("test-topic", 3); // Create a topic with 3 partitions
 
         Topic topic = topicManager.getTopic("test-topic");
@@ -183,9 +686,9 @@ public class Main {
         SignalHandler signalHandler = new SignalHandler(consumers);
         new Thread(signalHandler).start();
 
-        // Create consumers
+        // Create consumers, one per partition
         for (int i = 0; i < 3; i++) {
-            Consumer consumer = new Consumer("group-1", topic);
+            Consumer consumer = new Consumer("group-1", topic, i, -1);
             consumers.add(consumer);
             new Thread(consumer).start();
         }
@@ -193,12 +696,52 @@ public class Main {
         // Publish messages
         for (int i = 0; i < 10; i++) {
             Message message = new Message("Message " + (i + 1));
-            publisher.publish(message);
+            long offset = publisher.publish(message);
+            System.out.println("Published message: " + message.getContent() + " to topic: " + topic.getName() + " at offset " + offset);
             try {
                 Thread.sleep(500);
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
         }
+        for (Consumer consumer : consumers) {
+            consumer.stop();
+        }
+        topic.close();
+
+        // Restart: reopen the stored topic and replay partition 0 from the beginning
+        TopicManager restarted = new TopicManager(dataDirectory, LogConfig.defaults());
+        restarted.createTopic("test-topic", 3);
+        PartitionLog log = restarted.getTopic("test-topic").getPartitions().get(0).getLog();
+        for (StoredMessage stored : log.read(0, 100)) {
+            System.out.println("Replayed after restart: " + stored.getMessage().getContent() + " at offset " + stored.getOffset());
+        }
+        restarted.getTopic("test-topic").close();
+
+        // Append throughput with 16 MB segments and 64 MB retention, so segments roll and get deleted
+        PartitionLog throughputLog = new PartitionLog(dataDirectory.resolve("throughput-0"),
+                new LogConfig(16 << 20, 4096, TimeUnit.DAYS.toMillis(1), 64 << 20));
+        byte[] payload = new byte[512];
+        int count = 1_000_000;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            throughputLog.append(payload);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        throughputLog.flush(); // Also waits for the background retention triggered by the last roll
+        System.out.printf("Appended %d messages of %d bytes: %.0f MB/s, log now holds offsets %d to %d (%d MB)%n",
+                count, payload.length, count * (payload.length + (double) LogSegment.HEADER_BYTES) / seconds / (1 << 20),
+                throughputLog.getStartOffset(), throughputLog.getEndOffset(), throughputLog.getSizeBytes() >> 20);
+        System.out.println("Read at offset 900000: " + throughputLog.read(900_000, 1).get(0).getOffset());
+        throughputLog.close();
+        deleteRecursively(dataDirectory);
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (var paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
     }
 }
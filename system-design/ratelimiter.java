@@ -16,10 +16,41 @@
 // Implement comprehensive monitoring and logging mechanisms to track rate limiting events, system performance, and traffic patterns for 
 // troubleshooting and analysis purposes.
 
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
 
-public class RateLimiter {
+// Sliding log limiter: remembers the timestamp of every request inside the window
+public class RateLimiter implements RateLimitStrategy {
     private int maxRequests; // Maximum number of requests allowed within the time window
     private long timeWindowMillis; // Time window (in milliseconds) for limiting the requests
     private Deque<Long> requestTimes; // Queue to store timestamps of recent requests
@@ -30,30 +61,57 @@ public class RateLimiter {
         this.requestTimes = new ArrayDeque<>(maxRequests);
     }
 
-    // Method to check if a request should be allowed or not
-    public synchronized boolean allowRequest() {
+    // Method to check if a batch of requests should be allowed or not
+    @Override
+    public synchronized boolean tryAcquire(int permits) {
+        checkPermits(permits);
         long currentTime = System.currentTimeMillis(); // Get the current timestamp
         cleanExpiredRequests(currentTime); // Clean up expired requests from the queue
 
-        // Check if the number of requests within the time window is less than the maximum allowed
-        if (requestTimes.size() < maxRequests) {
-            requestTimes.addLast(currentTime); // Add current request timestamp to the queue
-            return true; // Allow the request
+        // Deny the whole batch if it does not fit in the time window
+        if (requestTimes.size() + permits > maxRequests) {
+            return false; // Rate limit exceeded
         }
+        recordRequests(currentTime, permits);
+        return true; // Allow the requests
+    }
 
-        // If the number of requests exceeds the maximum allowed, check the time window
-        long earliestRequestTime = requestTimes.getFirst(); // Get the timestamp of the earliest request
-        long timeSinceEarliestRequest = currentTime - earliestRequestTime; // Calculate time elapsed since the earliest request
+    @Override
+    public synchronized long reserve(int permits) {
+        checkPermits(permits);
+        long currentTime = System.currentTimeMillis();
+        cleanExpiredRequests(currentTime);
 
-        // If time elapsed is less than the time window, deny the request
-        if (timeSinceEarliestRequest < timeWindowMillis) {
-            return false; // Rate limit exceeded
-        } else {
-            // If time elapsed is greater than the time window, remove the earliest request timestamp
-            requestTimes.removeFirst();
-            // Add the current request timestamp to the queue
-            requestTimes.addLast(currentTime);
-            return true; // Allow the request
+        // The batch fits once the `excess` oldest requests have left the window
+        int excess = requestTimes.size() + permits - maxRequests;
+        long availableAt = currentTime;
+        if (excess > 0) {
+            Iterator<Long> iterator = requestTimes.iterator();
+            long expiringRequestTime = 0;
+            for (int i = 0; i < excess; i++) {
+                expiringRequestTime = iterator.next();
+            }
+            availableAt = expiringRequestTime + timeWindowMillis;
+        }
+        recordRequests(availableAt, permits);
+        return TimeUnit.MILLISECONDS.toNanos(availableAt - currentTime);
+    }
+
+    // Reserved requests are logged at their future start time. Later requests are never logged before
+    // them so the queue stays sorted, which errs on the side of denying rather than over-admitting.
+    private void recordRequests(long requestTime, int permits) {
+        if (!requestTimes.isEmpty()) {
+            requestTime = Math.max(requestTime, requestTimes.getLast());
+        }
+        Long timestamp = requestTime; // Box once for the whole batch
+        for (int i = 0; i < permits; i++) {
+            requestTimes.addLast(timestamp);
+        }
+    }
+
+    private void checkPermits(int permits) {
+        if (permits <= 0 || permits > maxRequests) {
+            throw new IllegalArgumentException("permits must be between 1 and " + maxRequests + ": " + permits);
         }
     }
 
@@ -67,8 +125,72 @@ public class RateLimiter {
 
     // Main method for testing the rate limiter
     public static void main(String[] args) {
-        RateLimiter rateLimiter = new RateLimiter(5, 1000); // Allow maximum 5 requests per second
+        System.out.println("Sliding log limiter:");
+        simulate(new RateLimiter(5, 1000)); // Allow maximum 5 requests per second
+
+        System.out.println("Sliding window counter limiter:");
+        simulate(new SlidingWindowCounterRateLimiter(5, 1000, 10)); // Same limit in constant memory
+
+        System.out.println("Token bucket limiter:");
+        simulate(new TokenBucketRateLimiter(5, 1000)); // Same limit, lock-free and allocation-free
+
+        System.out.println("Batch acquisition:");
+        RateLimitStrategy batchLimiter = new TokenBucketRateLimiter(1000, 1000); // 1000 records per second
+        System.out.println("tryAcquire(500): " + batchLimiter.tryAcquire(500));
+        System.out.println("tryAcquire(800): " + batchLimiter.tryAcquire(800));
+        System.out.println("reserve(800) wait ms: " + TimeUnit.NANOSECONDS.toMillis(batchLimiter.reserve(800)));
+
+        System.out.println("Distributed limiter:");
+        LoopbackQuotaCoordinator coordinator = new LoopbackQuotaCoordinator();
+        coordinator.registerQuota("api", 30, 1000); // 30 requests per second across all nodes
+        DistributedRateLimiter[] nodes = new DistributedRateLimiter[3];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new DistributedRateLimiter(coordinator, "api", 5, 1000);
+        }
+        int allowed = 0;
+        for (int i = 0; i < 60; i++) {
+            allowed += nodes[i % nodes.length].allowRequest() ? 1 : 0;
+        }
+        System.out.println("Allowed " + allowed + " of 60 requests spread over " + nodes.length + " nodes");
+        for (DistributedRateLimiter node : nodes) {
+            node.shutdown();
+        }
 
+        System.out.println("Hot-reloadable rules:");
+        try {
+            Path rulesFile = Files.createTempFile("rate-limits", ".conf");
+            RateLimitRuleEngine.writeRules(rulesFile, List.of("default 2 1000", "premium 4 1000"));
+            RateLimitRuleEngine ruleEngine = new RateLimitRuleEngine(rulesFile);
+            for (int i = 0; i < 3; i++) {
+                System.out.println("premium request " + (i + 1) + ": " + (ruleEngine.allowRequest("premium") ? "Allowed" : "Denied"));
+            }
+            RateLimitRuleEngine.writeRules(rulesFile, List.of("default 2 1000", "premium 2 1000")); // Downgrade keeps the 3 used permits
+            ruleEngine.reload();
+            System.out.println("premium after downgrade: " + (ruleEngine.allowRequest("premium") ? "Allowed" : "Denied"));
+            RateLimitRuleEngine.writeRules(rulesFile, List.of("default 2 1000", "premium 8 1000")); // Upgrade frees the extra permits at once
+            ruleEngine.reload();
+            System.out.println("premium after upgrade: " + (ruleEngine.allowRequest("premium") ? "Allowed" : "Denied"));
+            ruleEngine.close();
+            Files.delete(rulesFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("Per-key limiter:");
+        RateLimiterMetrics metrics = new RateLimiterMetrics(3);
+        KeyedRateLimiter<String> keyedLimiter = new KeyedRateLimiter<>(2, 1000, 5000, metrics); // 2 req/s per key
+        for (String apiKey : new String[] {"alice", "bob", "alice", "alice", "bob"}) {
+            System.out.println("Request from " + apiKey + ": " + (keyedLimiter.allowRequest(apiKey) ? "Allowed" : "Denied"));
+        }
+        System.out.println("reserve(carol, 2) twice, wait ms: " + TimeUnit.NANOSECONDS.toMillis(keyedLimiter.reserve("carol", 2))
+                + ", then " + TimeUnit.NANOSECONDS.toMillis(keyedLimiter.reserve("carol", 2)));
+        System.out.println("Tracked keys: " + keyedLimiter.size());
+        keyedLimiter.shutdown();
+        System.out.println(metrics.report());
+        metrics.shutdown();
+    }
+
+    private static void simulate(RateLimitStrategy rateLimiter) {
         // Simulating requests
         for (int i = 0; i < 10; i++) {
             if (rateLimiter.allowRequest()) {
@@ -86,3 +208,1052 @@ public class RateLimiter {
         }
     }
 }
+
+// Common contract for all rate limiting strategies so callers can pick one at construction time
+interface RateLimitStrategy {
+    // Returns true if the request is within the limit and should be processed
+    default boolean allowRequest() {
+        return tryAcquire(1);
+    }
+
+    // Takes all the permits at once if they are available right now, otherwise takes none
+    boolean tryAcquire(int permits);
+
+    // Always takes the permits and returns how many nanoseconds the caller must wait before using them
+    // (0 if they are available immediately), so callers can pace themselves instead of busy-retrying
+    long reserve(int permits);
+}
+
+// Sliding window counter limiter: constant-memory alternative to the sliding log above.
+// The window is split into `precision` fixed sub-windows and only a count per sub-window is kept.
+// The oldest sub-window only partially overlaps the sliding window, so its count is weighted by the
+// overlapping fraction (assuming its requests were evenly spread). precision = 1 is the classic
+// "previous window * overlap + current window" estimate; larger values trade a few more ints for
+// accuracy. Memory is O(precision) regardless of maxRequests.
+class SlidingWindowCounterRateLimiter implements RateLimitStrategy {
+    private final int maxRequests;
+    private final long subWindowNanos;
+    private final int[] counts; // Ring of sub-window counts: the current one plus `precision` older ones
+    private final long startNanos;
+    private long currentSubWindow; // Index of the sub-window counts[currentSubWindow % counts.length] belongs to
+    private long totalCount; // Sum of all counts in the ring
+
+    public SlidingWindowCounterRateLimiter(int maxRequests, long timeWindowMillis) {
+        this(maxRequests, timeWindowMillis, 1);
+    }
+
+    public SlidingWindowCounterRateLimiter(int maxRequests, long timeWindowMillis, int precision) {
+        if (maxRequests <= 0 || timeWindowMillis <= 0 || precision <= 0) {
+            throw new IllegalArgumentException("maxRequests, timeWindowMillis and precision must be positive");
+        }
+        this.maxRequests = maxRequests;
+        this.subWindowNanos = Math.max(1, TimeUnit.MILLISECONDS.toNanos(timeWindowMillis) / precision);
+        this.counts = new int[precision + 1];
+        this.startNanos = System.nanoTime();
+    }
+
+    @Override
+    public synchronized boolean tryAcquire(int permits) {
+        checkPermits(permits);
+        long elapsed = System.nanoTime() - startNanos;
+        rollSubWindows(elapsed / subWindowNanos);
+
+        // Fraction of the oldest sub-window that has already slid out of the window
+        double expiredFraction = (double) (elapsed % subWindowNanos) / subWindowNanos;
+        int oldest = counts[(int) ((currentSubWindow + 1) % counts.length)];
+        double estimatedCount = totalCount - oldest * expiredFraction;
+
+        if (estimatedCount + permits > maxRequests) {
+            return false; // Rate limit exceeded
+        }
+        record(permits);
+        return true;
+    }
+
+    // Finds the earliest instant at which the estimate leaves room for the batch, assuming no other
+    // traffic. Within a sub-window the estimate decays linearly, so each sub-window is solved directly.
+    // The reserved permits are charged to the current sub-window, which keeps later callers paced
+    // behind them at the cost of letting them expire slightly early.
+    @Override
+    public synchronized long reserve(int permits) {
+        checkPermits(permits);
+        long elapsed = System.nanoTime() - startNanos;
+        rollSubWindows(elapsed / subWindowNanos);
+
+        long budget = maxRequests - permits; // Highest estimate that still leaves room for the batch
+        long remaining = totalCount; // Count of the known sub-windows still inside the window
+        long waitNanos = 0;
+        for (int step = 0; step < counts.length; step++) {
+            int oldest = counts[(int) ((currentSubWindow + step + 1) % counts.length)];
+            long subWindowStart = (currentSubWindow + step) * subWindowNanos;
+            long from = Math.max(elapsed, subWindowStart); // Only look forward from now
+            if (remaining <= budget) {
+                waitNanos = from - elapsed;
+                break;
+            }
+            if (oldest > 0) {
+                // Solve remaining - oldest * fraction <= budget for the expired fraction of this sub-window
+                long fractionNanos = (long) Math.ceil((double) (remaining - budget) / oldest * subWindowNanos);
+                if (fractionNanos < subWindowNanos) {
+                    waitNanos = Math.max(from, subWindowStart + fractionNanos) - elapsed;
+                    break;
+                }
+            }
+            remaining -= oldest; // The oldest sub-window is gone entirely by the next boundary
+            waitNanos = subWindowStart + subWindowNanos - elapsed;
+        }
+        record(permits);
+        return waitNanos;
+    }
+
+    private void record(int permits) {
+        counts[(int) (currentSubWindow % counts.length)] += permits;
+        totalCount += permits;
+    }
+
+    private void checkPermits(int permits) {
+        if (permits <= 0 || permits > maxRequests) {
+            throw new IllegalArgumentException("permits must be between 1 and " + maxRequests + ": " + permits);
+        }
+    }
+
+    // Counterpart of RateLimiter.cleanExpiredRequests: zero sub-windows that fell out of the ring.
+    // Costs at most counts.length steps however long the limiter was idle.
+    private void rollSubWindows(long subWindow) {
+        long steps = Math.min(subWindow - currentSubWindow, counts.length);
+        for (long i = 1; i <= steps; i++) {
+            int slot = (int) ((currentSubWindow + i) % counts.length);
+            totalCount -= counts[slot];
+            counts[slot] = 0;
+        }
+        currentSubWindow = subWindow;
+    }
+}
+
+// Token bucket limiter with the whole bucket state packed into a single CAS-updated long.
+// Instead of storing (tokens, lastRefill) we store the "theoretical arrival time" (TAT): the
+// instant at which the bucket would be completely full again. Each permit pushes the TAT forward
+// by one emission interval, and a request is denied if that would push it more than one full
+// bucket (the burst capacity) ahead of now. This is the GCRA formulation of a token bucket.
+class TokenBucketRateLimiter implements RateLimitStrategy {
+    private final int maxRequests; // Bucket capacity in permits
+    private final long emissionIntervalNanos; // Time needed to refill a single token
+    private final long burstCapacityNanos; // Time needed to refill the whole bucket
+    private final AtomicLong theoreticalArrivalTime; // Only mutable state, updated with CAS
+
+    public TokenBucketRateLimiter(int maxRequests, long timeWindowMillis) {
+        if (maxRequests <= 0 || timeWindowMillis <= 0) {
+            throw new IllegalArgumentException("maxRequests and timeWindowMillis must be positive");
+        }
+        long windowNanos = TimeUnit.MILLISECONDS.toNanos(timeWindowMillis);
+        this.maxRequests = maxRequests;
+        this.emissionIntervalNanos = Math.max(1, windowNanos / maxRequests);
+        this.burstCapacityNanos = emissionIntervalNanos * maxRequests;
+        this.theoreticalArrivalTime = new AtomicLong(System.nanoTime()); // Bucket starts full
+    }
+
+    // Lock-free and allocation-free: a failed CAS just means another thread won, so re-read and retry
+    @Override
+    public boolean tryAcquire(int permits) {
+        long cost = costOf(permits);
+        while (true) {
+            long now = System.nanoTime();
+            long tat = theoreticalArrivalTime.get();
+            long newTat = Math.max(tat, now) + cost;
+
+            // Bucket would overflow: not enough tokens have been refilled yet
+            if (newTat - now > burstCapacityNanos) {
+                return false;
+            }
+            if (theoreticalArrivalTime.compareAndSet(tat, newTat)) {
+                return true;
+            }
+        }
+    }
+
+    // The batch fits once the TAT is no more than one bucket ahead of the clock
+    @Override
+    public long reserve(int permits) {
+        long cost = costOf(permits);
+        while (true) {
+            long now = System.nanoTime();
+            long tat = theoreticalArrivalTime.get();
+            long newTat = Math.max(tat, now) + cost;
+            if (theoreticalArrivalTime.compareAndSet(tat, newTat)) {
+                return Math.max(0, newTat - burstCapacityNanos - now);
+            }
+        }
+    }
+
+    private long costOf(int permits) {
+        if (permits <= 0 || permits > maxRequests) {
+            throw new IllegalArgumentException("permits must be between 1 and " + maxRequests + ": " + permits);
+        }
+        return emissionIntervalNanos * permits;
+    }
+}
+
+// Per-key limiter registry (per API key, tenant, IP...) designed for millions of keys.
+// - Keys are spread over striped ConcurrentHashMap segments so no single map becomes a hotspot.
+// - A bucket is created lazily on the first request for a key.
+// - Each bucket is a single long (the same GCRA token bucket as TokenBucketRateLimiter), and the
+//   limit itself is shared by the registry, so per-key state is one small object.
+// - Idle keys are evicted by a hashed timer wheel. A key whose bucket has been full for the idle
+//   timeout carries no information, so dropping it is indistinguishable from keeping it.
+class KeyedRateLimiter<K> {
+    private static final int WHEEL_SIZE = 64; // Number of slots in the idle-eviction timer wheel
+
+    // Compact per-key state: object header plus one long
+    static final class KeyBucket {
+        private static final AtomicLongFieldUpdater<KeyBucket> TAT =
+                AtomicLongFieldUpdater.newUpdater(KeyBucket.class, "theoreticalArrivalTime");
+        volatile long theoreticalArrivalTime;
+
+        KeyBucket(long now) {
+            this.theoreticalArrivalTime = now; // Bucket starts full
+        }
+    }
+
+    private final int maxRequests;
+    private final long emissionIntervalNanos;
+    private final long burstCapacityNanos;
+    private final long idleTimeoutNanos;
+    private final long tickNanos; // Time covered by a single wheel slot
+    private final ConcurrentHashMap<K, KeyBucket>[] stripes;
+    private final Queue<K>[] wheel; // Keys due for an idle check, bucketed by deadline
+    private final long startNanos;
+    private volatile long processedTicks; // Written only by the eviction thread
+    private final ScheduledExecutorService evictionScheduler;
+    private final RateLimiterMetrics metrics; // Null when metrics are disabled
+
+    public KeyedRateLimiter(int maxRequests, long timeWindowMillis, long idleTimeoutMillis) {
+        this(maxRequests, timeWindowMillis, idleTimeoutMillis, null);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public KeyedRateLimiter(int maxRequests, long timeWindowMillis, long idleTimeoutMillis, RateLimiterMetrics metrics) {
+        if (maxRequests <= 0 || timeWindowMillis <= 0 || idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("maxRequests, timeWindowMillis and idleTimeoutMillis must be positive");
+        }
+        long windowNanos = TimeUnit.MILLISECONDS.toNanos(timeWindowMillis);
+        this.maxRequests = maxRequests;
+        this.emissionIntervalNanos = Math.max(1, windowNanos / maxRequests);
+        this.burstCapacityNanos = emissionIntervalNanos * maxRequests;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.tickNanos = Math.max(1, idleTimeoutNanos / WHEEL_SIZE);
+        this.metrics = metrics;
+
+        int stripeCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 4);
+        this.stripes = new ConcurrentHashMap[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ConcurrentHashMap<>();
+        }
+        this.wheel = new Queue[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+
+        this.startNanos = System.nanoTime();
+        this.evictionScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "rate-limiter-idle-eviction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictionScheduler.scheduleAtFixedRate(this::expireIdleKeys, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // Check whether a request for the given key should be allowed
+    public boolean allowRequest(K key) {
+        return tryAcquire(key, 1);
+    }
+
+    // Takes all the permits for the key if they are available right now, otherwise takes none
+    public boolean tryAcquire(K key, int permits) {
+        checkPermits(permits);
+        if (metrics == null) {
+            return acquire(key, permits);
+        }
+        long start = System.nanoTime();
+        boolean allowed = acquire(key, permits);
+        metrics.recordDecision(key, allowed, System.nanoTime() - start);
+        return allowed;
+    }
+
+    // Always takes the permits for the key and returns how many nanoseconds the caller must wait
+    // before using them (0 if they are available immediately)
+    public long reserve(K key, int permits) {
+        checkPermits(permits);
+        long cost = emissionIntervalNanos * permits;
+        KeyBucket bucket = bucketFor(key);
+        long start = System.nanoTime();
+        while (true) {
+            long now = System.nanoTime();
+            long tat = bucket.theoreticalArrivalTime;
+            long newTat = Math.max(tat, now) + cost;
+            if (KeyBucket.TAT.compareAndSet(bucket, tat, newTat)) {
+                if (metrics != null) {
+                    metrics.recordDecision(key, true, System.nanoTime() - start);
+                }
+                return Math.max(0, newTat - burstCapacityNanos - now);
+            }
+        }
+    }
+
+    private boolean acquire(K key, int permits) {
+        return tryAcquire(key, permits, emissionIntervalNanos, burstCapacityNanos);
+    }
+
+    // Variant for callers whose limit differs per key (RateLimitRuleEngine): the limit is passed in
+    // and validating permits against it is the caller's job. Idle eviction works the same for any limit.
+    boolean tryAcquire(K key, int permits, long emissionIntervalNanos, long burstCapacityNanos) {
+        long cost = emissionIntervalNanos * permits;
+        KeyBucket bucket = bucketFor(key);
+        while (true) {
+            long now = System.nanoTime();
+            long tat = bucket.theoreticalArrivalTime;
+            long newTat = Math.max(tat, now) + cost;
+            if (newTat - now > burstCapacityNanos) {
+                return false;
+            }
+            if (KeyBucket.TAT.compareAndSet(bucket, tat, newTat)) {
+                return true;
+            }
+        }
+    }
+
+    // Multiplies every key's outstanding debt (the part of its TAT ahead of now) by the factor returned
+    // for it, e.g. newEmissionInterval / oldEmissionInterval when the limit charged to the key changes,
+    // so the permits already used keep counting in the units of the new limit. O(keys); run it off the
+    // request path. Requests racing with it may be charged at the new rate before their debt is scaled.
+    void scaleDebt(ToDoubleFunction<K> factorForKey) {
+        for (ConcurrentHashMap<K, KeyBucket> stripe : stripes) {
+            for (Map.Entry<K, KeyBucket> entry : stripe.entrySet()) {
+                double factor = factorForKey.applyAsDouble(entry.getKey());
+                if (factor == 1) {
+                    continue;
+                }
+                KeyBucket bucket = entry.getValue();
+                while (true) {
+                    long now = System.nanoTime();
+                    long tat = bucket.theoreticalArrivalTime;
+                    if (tat - now <= 0 || KeyBucket.TAT.compareAndSet(bucket, tat, now + (long) ((tat - now) * factor))) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private KeyBucket bucketFor(K key) {
+        ConcurrentHashMap<K, KeyBucket> stripe = stripeFor(key);
+        KeyBucket bucket = stripe.get(key);
+        if (bucket == null) {
+            bucket = stripe.computeIfAbsent(key, k -> {
+                long now = System.nanoTime();
+                schedule(k, now + idleTimeoutNanos); // One wheel entry per key, not per request
+                return new KeyBucket(now);
+            });
+        }
+        return bucket;
+    }
+
+    private void checkPermits(int permits) {
+        if (permits <= 0 || permits > maxRequests) {
+            throw new IllegalArgumentException("permits must be between 1 and " + maxRequests + ": " + permits);
+        }
+    }
+
+    // Number of keys currently tracked across all stripes
+    public int size() {
+        int size = 0;
+        for (ConcurrentHashMap<K, KeyBucket> stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    public void shutdown() {
+        evictionScheduler.shutdownNow();
+    }
+
+    // Advance the timer wheel up to now and drop every key that has been idle for the timeout.
+    // Keys that were used since they were scheduled are simply re-scheduled for their new deadline.
+    void expireIdleKeys() {
+        long now = System.nanoTime();
+        long currentTick = (now - startNanos) / tickNanos;
+        for (; processedTicks <= currentTick; processedTicks++) {
+            Queue<K> slot = wheel[(int) (processedTicks % WHEEL_SIZE)];
+            int due = slot.size(); // Keys re-scheduled into this slot during the sweep wait for the next lap
+            for (int i = 0; i < due; i++) {
+                K key = slot.poll();
+                if (key == null) {
+                    break;
+                }
+                ConcurrentHashMap<K, KeyBucket> stripe = stripeFor(key);
+                KeyBucket bucket = stripe.get(key);
+                if (bucket == null) {
+                    continue;
+                }
+                long idleDeadline = bucket.theoreticalArrivalTime + idleTimeoutNanos;
+                if (idleDeadline - now <= 0) {
+                    // A request racing with this removal may consume a permit from the detached bucket;
+                    // at worst the key gets one extra permit right after going idle
+                    stripe.remove(key, bucket);
+                } else {
+                    schedule(key, idleDeadline);
+                }
+            }
+        }
+    }
+
+    // Request threads read processedTicks while the eviction thread may lag behind the clock, so a
+    // deadline can be more than one lap ahead. It is clamped to the last slot of the current lap:
+    // the key is then checked early and re-scheduled, instead of landing in a slot polled a lap early.
+    private void schedule(K key, long deadlineNanos) {
+        long processed = processedTicks;
+        long tick = Math.max(processed, (deadlineNanos - startNanos) / tickNanos + 1);
+        tick = Math.min(tick, processed + WHEEL_SIZE - 1);
+        wheel[(int) (tick % WHEEL_SIZE)].offer(key);
+    }
+
+    private ConcurrentHashMap<K, KeyBucket> stripeFor(K key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16); // Spread high bits so stripes and the map's own buckets use different bits
+        return stripes[h & (stripes.length - 1)];
+    }
+}
+
+// Central authority for a global quota shared by many limiter nodes. Nodes never call it per request,
+// only to lease blocks of permits, so an implementation may be a remote service (Redis, a gRPC
+// quota server...) without putting a network round trip on the request path.
+interface QuotaCoordinator {
+    // Grants up to `requested` permits of the quota (possibly 0) for the node to spend locally
+    long lease(String quotaId, long requested);
+
+    // Returns unused permits of an expired lease to the quota
+    void release(String quotaId, long permits);
+
+    // Rate at which the quota refills, across all nodes
+    double permitsPerSecond(String quotaId);
+}
+
+// In-process coordinator: one token bucket per quota. Used as the loopback implementation so a whole
+// cluster of DistributedRateLimiter nodes can be exercised inside a single JVM.
+class LoopbackQuotaCoordinator implements QuotaCoordinator {
+    private static final class GlobalQuota {
+        final long capacity;
+        final double permitsPerNano;
+        double available;
+        long lastRefillNanos;
+
+        GlobalQuota(long capacity, long timeWindowMillis) {
+            this.capacity = capacity;
+            this.permitsPerNano = (double) capacity / TimeUnit.MILLISECONDS.toNanos(timeWindowMillis);
+            this.available = capacity;
+            this.lastRefillNanos = System.nanoTime();
+        }
+    }
+
+    private final Map<String, GlobalQuota> quotas = new HashMap<>();
+
+    public synchronized void registerQuota(String quotaId, long maxRequests, long timeWindowMillis) {
+        if (maxRequests <= 0 || timeWindowMillis <= 0) {
+            throw new IllegalArgumentException("maxRequests and timeWindowMillis must be positive");
+        }
+        quotas.put(quotaId, new GlobalQuota(maxRequests, timeWindowMillis));
+    }
+
+    @Override
+    public synchronized long lease(String quotaId, long requested) {
+        GlobalQuota quota = refilledQuota(quotaId);
+        long granted = Math.min(requested, (long) quota.available);
+        quota.available -= granted;
+        return granted;
+    }
+
+    @Override
+    public synchronized void release(String quotaId, long permits) {
+        GlobalQuota quota = refilledQuota(quotaId);
+        quota.available = Math.min(quota.capacity, quota.available + permits);
+    }
+
+    @Override
+    public synchronized double permitsPerSecond(String quotaId) {
+        return refilledQuota(quotaId).permitsPerNano * TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private GlobalQuota refilledQuota(String quotaId) {
+        GlobalQuota quota = quotas.get(quotaId);
+        if (quota == null) {
+            throw new IllegalArgumentException("Unknown quota: " + quotaId);
+        }
+        long now = System.nanoTime();
+        quota.available = Math.min(quota.capacity, quota.available + (now - quota.lastRefillNanos) * quota.permitsPerNano);
+        quota.lastRefillNanos = now;
+        return quota;
+    }
+}
+
+// Node-local view of a global quota. Requests are served from a locally leased block of permits with
+// a single atomic decrement; when the block runs below half, the next block is leased asynchronously
+// so the request path never waits on the coordinator. If the lease is exhausted before the refill
+// lands, requests are denied (fail closed) rather than blocked. When the global quota runs short, the
+// node does not ask again on every denial: after a partial or empty grant it waits until the quota
+// has had time to refill the missing part of a lease (at most one lease TTL).
+class DistributedRateLimiter implements RateLimitStrategy {
+    private final QuotaCoordinator coordinator;
+    private final String quotaId;
+    private final long leaseSize; // Permits requested from the coordinator per round trip
+    private final long leaseTtlNanos; // Unused permits expire so idle nodes cannot hoard the global quota
+    private final long emissionIntervalNanos; // Global refill interval, used to estimate reservation waits
+    private final AtomicLong localPermits = new AtomicLong(); // May go negative while reservations are owed
+    // Both deadlines are compared by nanoTime subtraction, so they start at the construction time:
+    // nanoTime has an arbitrary origin and 0 is not a safe "unset" value.
+    private volatile long leaseExpiryNanos;
+    private volatile long nextLeaseAttemptNanos; // Retry-after following a short grant
+    private final AtomicBoolean refillInFlight = new AtomicBoolean();
+    private final ExecutorService refillExecutor;
+
+    public DistributedRateLimiter(QuotaCoordinator coordinator, String quotaId, long leaseSize, long leaseTtlMillis) {
+        if (leaseSize <= 0 || leaseTtlMillis <= 0) {
+            throw new IllegalArgumentException("leaseSize and leaseTtlMillis must be positive");
+        }
+        this.coordinator = coordinator;
+        this.quotaId = quotaId;
+        this.leaseSize = leaseSize;
+        this.leaseTtlNanos = TimeUnit.MILLISECONDS.toNanos(leaseTtlMillis);
+        this.emissionIntervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / coordinator.permitsPerSecond(quotaId)));
+        this.refillExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "rate-limiter-lease-refill-" + quotaId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        long now = System.nanoTime();
+        this.leaseExpiryNanos = now; // No lease held yet
+        this.nextLeaseAttemptNanos = now; // First attempt is due immediately
+        refill(); // First lease is taken synchronously at startup, not on the request path
+    }
+
+    @Override
+    public boolean tryAcquire(int permits) {
+        checkPermits(permits);
+        expireLeaseIfStale();
+        while (true) {
+            long available = localPermits.get();
+            if (available < permits) {
+                refillAsync();
+                return false; // Local lease exhausted, wait for the next block
+            }
+            if (localPermits.compareAndSet(available, available - permits)) {
+                if (available - permits < leaseSize / 2) {
+                    refillAsync(); // Prefetch before the lease runs dry
+                }
+                return true;
+            }
+        }
+    }
+
+    // Takes the permits on credit: the debt is repaid from the next leases. The wait is the time the
+    // global quota needs to refill the debt, so it is a lower bound when other nodes compete for it.
+    @Override
+    public long reserve(int permits) {
+        checkPermits(permits);
+        expireLeaseIfStale();
+        long remaining = localPermits.addAndGet(-permits);
+        refillAsync();
+        return remaining >= 0 ? 0 : -remaining * emissionIntervalNanos;
+    }
+
+    // Stops refilling and hands the unused permits back to the quota
+    public void shutdown() {
+        refillExecutor.shutdownNow();
+        long unused = localPermits.getAndSet(0);
+        if (unused > 0) {
+            coordinator.release(quotaId, unused);
+        }
+    }
+
+    private void refillAsync() {
+        if (System.nanoTime() - nextLeaseAttemptNanos < 0) {
+            return; // The quota was short on the last attempt; wait until it has refilled
+        }
+        if (refillInFlight.compareAndSet(false, true)) {
+            try {
+                refillExecutor.execute(() -> {
+                    try {
+                        refill();
+                    } finally {
+                        refillInFlight.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                refillInFlight.set(false); // Shut down
+            }
+        }
+    }
+
+    private void refill() {
+        long granted = coordinator.lease(quotaId, leaseSize);
+        long now = System.nanoTime();
+        if (granted > 0) {
+            // Publish the new expiry before the permits, so expireLeaseIfStale cannot drop them
+            leaseExpiryNanos = now + leaseTtlNanos;
+            localPermits.addAndGet(granted);
+        }
+        if (granted < leaseSize) {
+            nextLeaseAttemptNanos = now + Math.min(leaseTtlNanos, (leaseSize - granted) * emissionIntervalNanos);
+        }
+    }
+
+    // Return leftover permits of an expired lease to the coordinator; debt from reservations is kept
+    // until repaid. The expiry is re-read after the permits, since a refill publishes it first.
+    private void expireLeaseIfStale() {
+        if (System.nanoTime() - leaseExpiryNanos > 0) {
+            long available = localPermits.get();
+            if (available > 0 && System.nanoTime() - leaseExpiryNanos > 0 && localPermits.compareAndSet(available, 0)) {
+                try {
+                    refillExecutor.execute(() -> coordinator.release(quotaId, available));
+                } catch (RejectedExecutionException e) {
+                    // Shut down: shutdown() has already released what was left
+                }
+            }
+        }
+    }
+
+    private void checkPermits(int permits) {
+        if (permits <= 0 || permits > leaseSize) {
+            throw new IllegalArgumentException("permits must be between 1 and " + leaseSize + ": " + permits);
+        }
+    }
+}
+
+// Immutable limit for one rule key. Token bucket parameters are precomputed so swapping a rule is a
+// single reference write and the request path does no arithmetic beyond the GCRA check.
+final class RateLimitRule {
+    final String key;
+    final int maxRequests;
+    final long timeWindowMillis;
+    final long emissionIntervalNanos;
+    final long burstCapacityNanos;
+
+    RateLimitRule(String key, int maxRequests, long timeWindowMillis) {
+        if (maxRequests <= 0 || timeWindowMillis <= 0) {
+            throw new IllegalArgumentException("Rule " + key + ": maxRequests and timeWindowMillis must be positive");
+        }
+        this.key = key;
+        this.maxRequests = maxRequests;
+        this.timeWindowMillis = timeWindowMillis;
+        this.emissionIntervalNanos = Math.max(1, TimeUnit.MILLISECONDS.toNanos(timeWindowMillis) / maxRequests);
+        this.burstCapacityNanos = emissionIntervalNanos * maxRequests;
+    }
+
+    // Parses one line of the rules file: "<key> <maxRequests> <timeWindowMillis>"
+    static RateLimitRule parse(String line) {
+        String[] parts = line.trim().split("\\s+");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Expected '<key> <maxRequests> <timeWindowMillis>' but got: " + line);
+        }
+        return new RateLimitRule(parts[0], Integer.parseInt(parts[1]), Long.parseLong(parts[2]));
+    }
+}
+
+// Rate limit rules loaded from a watched file and applied without downtime.
+// - Rules live in an immutable map that is replaced wholesale on reload (copy-on-write), so callers
+//   read it with one volatile load and never block on a reload in progress.
+// - Counter state is kept apart from the rules, in a KeyedRateLimiter used with a per-call limit, so
+//   client keys share its striping and idle-key eviction and memory stays bounded by active keys.
+// - When a reload changes the limit that applies to a key, the key's outstanding debt is converted to
+//   the new rule's units: the permits it already used keep counting. Raising a limit frees the extra
+//   permits at once, lowering it below current usage denies until the bucket drains, and there is
+//   no window in which a key runs unlimited.
+// - Keys without a rule of their own fall back to the "default" rule.
+// - A file that fails to parse is rejected as a whole and the previous rules stay active. So is a file
+//   whose last line has no line terminator, since it may have been cut off mid-write.
+// - Writers must replace the file atomically: write a temp file in the same directory and rename it
+//   over the rules file (see writeRules), which the watcher sees as ENTRY_CREATE. Rewriting the file in
+//   place can still be observed half-written. The watcher also waits for the directory to be quiet for
+//   RELOAD_DEBOUNCE_MILLIS before reloading, so a burst of events from one write triggers one reload.
+class RateLimitRuleEngine implements AutoCloseable {
+    static final String DEFAULT_RULE = "default";
+    private static final long RELOAD_DEBOUNCE_MILLIS = 200;
+
+    private final Path rulesFile;
+    private volatile Map<String, RateLimitRule> rules;
+    private final KeyedRateLimiter<String> buckets; // Charged with the limit of each key's rule
+    private final WatchService watchService;
+    private final Thread watcherThread;
+
+    // Keys idle for a minute are forgotten
+    public RateLimitRuleEngine(Path rulesFile) throws IOException {
+        this(rulesFile, TimeUnit.MINUTES.toMillis(1));
+    }
+
+    public RateLimitRuleEngine(Path rulesFile, long idleTimeoutMillis) throws IOException {
+        this.rulesFile = rulesFile.toAbsolutePath();
+        this.rules = loadRules(this.rulesFile);
+        RateLimitRule defaultRule = rules.get(DEFAULT_RULE);
+        this.buckets = new KeyedRateLimiter<>(defaultRule.maxRequests, defaultRule.timeWindowMillis, idleTimeoutMillis);
+
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.rulesFile.getParent().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.watcherThread = new Thread(this::watchRulesFile, "rate-limit-rules-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    public boolean allowRequest(String key) {
+        return tryAcquire(key, 1);
+    }
+
+    public boolean tryAcquire(String key, int permits) {
+        RateLimitRule rule = ruleFor(key);
+        if (permits <= 0 || permits > rule.maxRequests) {
+            throw new IllegalArgumentException("permits must be between 1 and " + rule.maxRequests + ": " + permits);
+        }
+        return buckets.tryAcquire(key, permits, rule.emissionIntervalNanos, rule.burstCapacityNanos);
+    }
+
+    public RateLimitRule ruleFor(String key) {
+        return ruleFor(rules, key); // Single volatile read per request
+    }
+
+    // Re-reads the rules file and atomically swaps the rule table. Also called by the file watcher.
+    public synchronized void reload() throws IOException {
+        Map<String, RateLimitRule> previous = rules;
+        Map<String, RateLimitRule> updated = loadRules(rulesFile);
+        rules = updated;
+        buckets.scaleDebt(key -> (double) ruleFor(updated, key).emissionIntervalNanos / ruleFor(previous, key).emissionIntervalNanos);
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        watcherThread.interrupt();
+        buckets.shutdown();
+    }
+
+    private static RateLimitRule ruleFor(Map<String, RateLimitRule> rules, String key) {
+        RateLimitRule rule = rules.get(key);
+        return rule != null ? rule : rules.get(DEFAULT_RULE);
+    }
+
+    // Replaces the rules file atomically, so the watcher never reads a partly written file
+    public static void writeRules(Path rulesFile, List<String> lines) throws IOException {
+        Path target = rulesFile.toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, lines);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void watchRulesFile() {
+        try {
+            while (true) {
+                if (!rulesFileChanged(watchService.take())) {
+                    continue;
+                }
+                // Debounce: keep draining events until the directory has been quiet for a while
+                WatchKey watchKey;
+                while ((watchKey = watchService.poll(RELOAD_DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    rulesFileChanged(watchKey);
+                }
+                try {
+                    reload();
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Rejected rate limit rules from " + rulesFile + ": " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Engine closed
+        }
+    }
+
+    private boolean rulesFileChanged(WatchKey watchKey) {
+        boolean changed = watchKey.pollEvents().stream()
+                .anyMatch(event -> rulesFile.getFileName().equals(event.context()));
+        watchKey.reset();
+        return changed;
+    }
+
+    private static Map<String, RateLimitRule> loadRules(Path rulesFile) throws IOException {
+        String content = Files.readString(rulesFile);
+        if (!content.isEmpty() && !content.endsWith("\n")) {
+            throw new IllegalArgumentException("Rules file " + rulesFile + " ends in an unterminated line, it may still be being written");
+        }
+        Map<String, RateLimitRule> loaded = new HashMap<>();
+        for (String line : content.split("\\R")) {
+            if (line.isBlank() || line.trim().startsWith("#")) {
+                continue;
+            }
+            RateLimitRule rule = RateLimitRule.parse(line);
+            loaded.put(rule.key, rule);
+        }
+        if (!loaded.containsKey(DEFAULT_RULE)) {
+            throw new IllegalArgumentException("Rules file " + rulesFile + " must define a '" + DEFAULT_RULE + "' rule");
+        }
+        return Collections.unmodifiableMap(loaded);
+    }
+}
+
+// Rate limiter monitoring without adding a lock to the request path:
+// - allowed / denied counters are LongAdders (per-CPU cells, summed only when read)
+// - decision latency goes into a log-linear histogram (HDR style): each power of two is split into
+//   SUB_BUCKETS linear buckets, so every recorded value is kept within ~12% relative error using a
+//   fixed number of LongAdders no matter how many values are recorded
+// - the most throttled keys are tracked by a Count-Min sketch plus a small bounded candidate table,
+//   so memory stays fixed even when millions of distinct keys are denied. A denial only writes the key
+//   into a striped, lossy ring buffer (one CAS on the stripe picked by the calling thread); a background
+//   thread drains the buffers into the sketch and the candidate table, which are plain arrays and maps
+//   owned by that thread. Under a burst a full or contended stripe drops the key, which only thins out
+//   the sample: a key that is throttled often still shows up often.
+// - the sketch and candidate counts are halved every aging period, so the top list follows recent
+//   traffic instead of all of history
+class RateLimiterMetrics {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 1 << 12;
+    private static final int DENIAL_BUFFER_SIZE = 256; // Per stripe, a power of two
+    private static final long DRAIN_PERIOD_MILLIS = 100;
+
+    // Bounded multi-producer ring of denied keys, drained by the metrics thread only
+    private static final class DenialBuffer {
+        final AtomicReferenceArray<Object> slots = new AtomicReferenceArray<>(DENIAL_BUFFER_SIZE);
+        final AtomicLong writeIndex = new AtomicLong();
+        volatile long readIndex;
+
+        void offer(Object key) {
+            long write = writeIndex.get();
+            if (write - readIndex >= DENIAL_BUFFER_SIZE || !writeIndex.compareAndSet(write, write + 1)) {
+                return; // Full or contended: drop this sample
+            }
+            slots.lazySet((int) (write & (DENIAL_BUFFER_SIZE - 1)), key);
+        }
+    }
+
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder denied = new LongAdder();
+    private final LongAdder[] latencyBuckets = new LongAdder[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+
+    private final int topN;
+    private final DenialBuffer[] denialBuffers;
+    // Guarded by this; only touched by the drain and by readers of the top list
+    private final long[] throttleSketch = new long[SKETCH_DEPTH * SKETCH_WIDTH];
+    private final Map<Object, Long> throttledCandidates = new HashMap<>();
+    private long candidateThreshold; // Estimated count a key needs to enter a full candidate table
+    private final ScheduledExecutorService scheduler;
+
+    // Top keys age with a half-life of one minute
+    public RateLimiterMetrics(int topN) {
+        this(topN, TimeUnit.MINUTES.toMillis(1));
+    }
+
+    public RateLimiterMetrics(int topN, long agingPeriodMillis) {
+        if (topN <= 0 || agingPeriodMillis <= 0) {
+            throw new IllegalArgumentException("topN and agingPeriodMillis must be positive");
+        }
+        this.topN = topN;
+        for (int i = 0; i < latencyBuckets.length; i++) {
+            latencyBuckets[i] = new LongAdder();
+        }
+        this.denialBuffers = new DenialBuffer[Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2)];
+        for (int i = 0; i < denialBuffers.length; i++) {
+            denialBuffers[i] = new DenialBuffer();
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "rate-limiter-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::drainDenials, DRAIN_PERIOD_MILLIS, DRAIN_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(this::age, agingPeriodMillis, agingPeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Records one limiter decision; key may be null for limiters that are not keyed
+    public void recordDecision(Object key, boolean wasAllowed, long latencyNanos) {
+        if (wasAllowed) {
+            allowed.increment();
+        } else {
+            denied.increment();
+            if (key != null) {
+                long thread = Thread.currentThread().getId();
+                denialBuffers[(int) ((thread * 0x9E3779B97F4A7C15L) >>> 32) & (denialBuffers.length - 1)].offer(key);
+            }
+        }
+        latencyBuckets[bucketIndex(latencyNanos)].increment();
+        maxLatencyNanos.accumulate(latencyNanos);
+    }
+
+    public long allowedCount() {
+        return allowed.sum();
+    }
+
+    public long deniedCount() {
+        return denied.sum();
+    }
+
+    // Upper bound of the bucket holding the given percentile (0-100) of decision latencies
+    public long latencyPercentile(double percentile) {
+        long[] counts = new long[latencyBuckets.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = latencyBuckets[i].sum();
+            total += counts[i];
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return Math.min(bucketUpperBound(i), maxLatencyNanos.get());
+            }
+        }
+        return 0;
+    }
+
+    // Most throttled keys with their estimated (sampled, aged) denial counts, highest first
+    public synchronized List<Map.Entry<Object, Long>> topThrottledKeys() {
+        drainDenials();
+        List<Map.Entry<Object, Long>> entries = new ArrayList<>();
+        for (Object key : throttledCandidates.keySet()) {
+            entries.add(Map.entry(key, estimateThrottled(key)));
+        }
+        entries.sort(Map.Entry.<Object, Long>comparingByValue().reversed());
+        return entries.size() > topN ? entries.subList(0, topN) : entries;
+    }
+
+    public String report() {
+        return "allowed=" + allowedCount()
+                + " denied=" + deniedCount()
+                + " p50=" + latencyPercentile(50) + "ns"
+                + " p99=" + latencyPercentile(99) + "ns"
+                + " max=" + maxLatencyNanos.get() + "ns"
+                + " topThrottled=" + topThrottledKeys();
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    synchronized void drainDenials() {
+        for (DenialBuffer buffer : denialBuffers) {
+            long read = buffer.readIndex;
+            long write = buffer.writeIndex.get();
+            for (; read < write; read++) {
+                int slot = (int) (read & (DENIAL_BUFFER_SIZE - 1));
+                Object key = buffer.slots.get(slot);
+                if (key == null) {
+                    break; // Claimed but not yet written; picked up by the next drain
+                }
+                buffer.slots.lazySet(slot, null);
+                recordThrottled(key);
+            }
+            buffer.readIndex = read;
+        }
+    }
+
+    // Halves every count, so a key's weight decays with a half-life of one aging period
+    synchronized void age() {
+        drainDenials();
+        for (int i = 0; i < throttleSketch.length; i++) {
+            throttleSketch[i] >>>= 1;
+        }
+        throttledCandidates.replaceAll((key, count) -> count >>> 1);
+        throttledCandidates.values().removeIf(count -> count == 0);
+        candidateThreshold >>>= 1;
+    }
+
+    private void recordThrottled(Object key) {
+        int hash = key.hashCode();
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            estimate = Math.min(estimate, ++throttleSketch[sketchIndex(hash, row)]);
+        }
+
+        // Only keys that beat the weakest candidate enter the table; it is pruned back once it doubles
+        int capacity = topN * 4;
+        if (throttledCandidates.containsKey(key) || estimate > candidateThreshold || throttledCandidates.size() < capacity) {
+            throttledCandidates.put(key, estimate);
+            if (throttledCandidates.size() > capacity * 2) {
+                pruneCandidates(capacity);
+            }
+        }
+    }
+
+    private void pruneCandidates(int capacity) {
+        List<Map.Entry<Object, Long>> entries = new ArrayList<>(throttledCandidates.entrySet());
+        entries.sort(Map.Entry.comparingByValue());
+        int excess = entries.size() - capacity;
+        for (int i = 0; i < excess; i++) {
+            throttledCandidates.remove(entries.get(i).getKey());
+        }
+        candidateThreshold = entries.get(Math.max(0, excess)).getValue();
+    }
+
+    private long estimateThrottled(Object key) {
+        int hash = key.hashCode();
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            estimate = Math.min(estimate, throttleSketch[sketchIndex(hash, row)]);
+        }
+        return estimate;
+    }
+
+    // Each sketch row uses a differently seeded hash of the key
+    private static int sketchIndex(int hash, int row) {
+        int h = hash * (0x9E3779B9 + (row << 1));
+        h ^= h >>> 15;
+        return row * SKETCH_WIDTH + (h & (SKETCH_WIDTH - 1));
+    }
+
+    // Values below SUB_BUCKETS get one bucket each; above that, bucket = (exponent, top mantissa bits)
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long mantissa = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + mantissa + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
+
+// Decorator that adds metrics to any rate limit strategy
+class MeteredRateLimiter implements RateLimitStrategy {
+    private final RateLimitStrategy delegate;
+    private final RateLimiterMetrics metrics;
+
+    public MeteredRateLimiter(RateLimitStrategy delegate, RateLimiterMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public boolean tryAcquire(int permits) {
+        long start = System.nanoTime();
+        boolean allowed = delegate.tryAcquire(permits);
+        metrics.recordDecision(null, allowed, System.nanoTime() - start);
+        return allowed;
+    }
+
+    @Override
+    public long reserve(int permits) {
+        long start = System.nanoTime();
+        long waitNanos = delegate.reserve(permits);
+        metrics.recordDecision(null, true, System.nanoTime() - start);
+        return waitNanos;
+    }
+}